@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hannesdorfmann.annotationprocessing101.factory.benchmark;
+
+import com.hannesdorfmann.annotationprocessing101.factory.processor.DispatchStrategy;
+import com.hannesdorfmann.annotationprocessing101.factory.processor.FactoryOptions;
+import com.hannesdorfmann.annotationprocessing101.factory.processor.IdOrder;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures create() of a generated factory for every {@link DispatchStrategy}. The factory is
+ * generated for a group of synthetic classes (see {@link SyntheticSources}) and compiled
+ * in-process once per trial.
+ *
+ * @author Hannes Dorfmann
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FactoryBenchmark {
+
+  /**
+   * Which id is passed to create()
+   */
+  public enum Distribution {
+    /**
+     * The id of the first @Factory annotated class the processor has seen
+     */
+    HOT_FIRST,
+
+    /**
+     * The id of the last @Factory annotated class the processor has seen
+     */
+    HOT_LAST,
+
+    /**
+     * An id that is not in the group. Includes the costs of the thrown exception.
+     */
+    UNKNOWN
+  }
+
+  @Param({ "10", "100", "10000" })
+  public int size;
+
+  @Param({ "IF_CHAIN", "SWITCH", "PERFECT_HASH" })
+  public DispatchStrategy strategy;
+
+  @Param({ "HOT_FIRST", "HOT_LAST", "UNKNOWN" })
+  public Distribution distribution;
+
+  private FactoryCompiler compiler;
+  private URLClassLoader classLoader;
+  private Creator creator;
+  private String id;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    Map<String, String> options = new HashMap<String, String>();
+    options.put(FactoryOptions.DISPATCH, strategy.name());
+    // HOT_FIRST and HOT_LAST refer to the order in which the processor sees the classes
+    options.put(FactoryOptions.ORDER, IdOrder.DECLARATION.name());
+
+    compiler = new FactoryCompiler(Files.createTempDirectory("factory-benchmark").toFile());
+    compiler.compile(SyntheticSources.create(size, 1), options);
+    classLoader = compiler.newClassLoader();
+    creator = (Creator) classLoader.loadClass(SyntheticSources.creatorName(0))
+        .getDeclaredConstructor()
+        .newInstance();
+
+    switch (distribution) {
+      case HOT_FIRST:
+        id = SyntheticSources.id(0);
+        break;
+      case HOT_LAST:
+        id = SyntheticSources.id(size - 1);
+        break;
+      default:
+        id = "unknown-product";
+        break;
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    classLoader.close();
+    compiler.delete();
+  }
+
+  @Benchmark
+  public Object create() {
+    try {
+      return creator.create(id);
+    } catch (IllegalArgumentException e) {
+      return e;
+    }
+  }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hannesdorfmann.annotationprocessing101.factory.benchmark;
+
+import com.hannesdorfmann.annotationprocessing101.factory.processor.FactoryProcessor;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import javax.annotation.processing.Processor;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+
+/**
+ * Compiles sources in-process with the system {@link JavaCompiler} and the {@link
+ * FactoryProcessor}. The generated sources and the class files are written to a directory.
+ *
+ * @author Hannes Dorfmann
+ */
+public class FactoryCompiler {
+
+  private final File outputDir;
+  private final File sourceOutputDir;
+  private final File classOutputDir;
+
+  /**
+   * @param outputDir the directory for the generated sources and class files. Is created if it
+   * doesn't exist.
+   */
+  public FactoryCompiler(File outputDir) {
+    this.outputDir = outputDir;
+    this.sourceOutputDir = new File(outputDir, "generated");
+    this.classOutputDir = new File(outputDir, "classes");
+  }
+
+  /**
+   * Compiles the sources with a new {@link FactoryProcessor}
+   *
+   * @param sources the sources to compile
+   * @param options the processor options, passed to javac as <code>-Akey=value</code>
+   * @throws IllegalStateException if the compilation fails
+   */
+  public void compile(List<JavaFileObject> sources, Map<String, String> options)
+      throws IOException {
+    compile(sources, options, new FactoryProcessor());
+  }
+
+  /**
+   * Compiles the sources with the given annotation processor
+   *
+   * @param sources the sources to compile
+   * @param options the processor options, passed to javac as <code>-Akey=value</code>
+   * @param processor the annotation processor
+   * @throws IllegalStateException if the compilation fails
+   */
+  public void compile(List<JavaFileObject> sources, Map<String, String> options,
+      Processor processor) throws IOException {
+
+    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    if (compiler == null) {
+      throw new IllegalStateException("No system java compiler found, run the benchmarks on a JDK");
+    }
+
+    if (!sourceOutputDir.isDirectory() && !sourceOutputDir.mkdirs()) {
+      throw new IOException("Can't create directory " + sourceOutputDir);
+    }
+    if (!classOutputDir.isDirectory() && !classOutputDir.mkdirs()) {
+      throw new IOException("Can't create directory " + classOutputDir);
+    }
+
+    DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+    StandardJavaFileManager fileManager =
+        compiler.getStandardFileManager(diagnostics, Locale.ENGLISH, null);
+    try {
+      fileManager.setLocation(StandardLocation.SOURCE_OUTPUT,
+          Collections.singletonList(sourceOutputDir));
+      fileManager.setLocation(StandardLocation.CLASS_OUTPUT,
+          Collections.singletonList(classOutputDir));
+
+      List<String> javacOptions = new ArrayList<String>();
+      javacOptions.addAll(Arrays.asList("-classpath", System.getProperty("java.class.path")));
+      for (Map.Entry<String, String> option : options.entrySet()) {
+        javacOptions.add("-A" + option.getKey() + "=" + option.getValue());
+      }
+
+      JavaCompiler.CompilationTask task =
+          compiler.getTask(null, fileManager, diagnostics, javacOptions, null, sources);
+      task.setProcessors(Collections.singletonList(processor));
+
+      if (!task.call()) {
+        StringBuilder message = new StringBuilder("Compilation failed:");
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+          if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+            message.append('\n').append(diagnostic.getMessage(Locale.ENGLISH));
+          }
+        }
+        throw new IllegalStateException(message.toString());
+      }
+    } finally {
+      fileManager.close();
+    }
+  }
+
+  /**
+   * Creates a class loader for the compiled classes. The classes of this module (like {@link
+   * Creator}) are loaded by the parent class loader.
+   */
+  public URLClassLoader newClassLoader() throws IOException {
+    return new URLClassLoader(new URL[] { classOutputDir.toURI().toURL() },
+        FactoryCompiler.class.getClassLoader());
+  }
+
+  /**
+   * Deletes all generated sources and class files
+   */
+  public void delete() {
+    delete(outputDir);
+  }
+
+  private static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+}
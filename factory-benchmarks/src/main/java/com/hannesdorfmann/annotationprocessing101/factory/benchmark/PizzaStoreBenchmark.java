@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hannesdorfmann.annotationprocessing101.factory.benchmark;
+
+import com.hannesdorfmann.annotationprocessing101.factory.PizzaStore;
+import com.hannesdorfmann.annotationprocessing101.factory.PizzaStore_HandWritten;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the {@link PizzaStore} of the sample, that uses the generated MealFactory, with the
+ * {@link PizzaStore_HandWritten}.
+ *
+ * @author Hannes Dorfmann
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PizzaStoreBenchmark {
+
+  @Param({ "Margherita", "Calzone", "Tiramisu", "Espresso", "Unknown" })
+  public String meal;
+
+  private final PizzaStore generated = new PizzaStore();
+  private final PizzaStore_HandWritten handWritten = new PizzaStore_HandWritten();
+
+  @Benchmark
+  public Object generated() {
+    try {
+      return generated.order(meal);
+    } catch (IllegalArgumentException e) {
+      return e;
+    }
+  }
+
+  @Benchmark
+  public Object handWritten() {
+    try {
+      return handWritten.order(meal);
+    } catch (IllegalArgumentException e) {
+      return e;
+    }
+  }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hannesdorfmann.annotationprocessing101.factory.benchmark;
+
+import com.hannesdorfmann.annotationprocessing101.factory.processor.FactoryProcessor;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import javax.tools.JavaFileObject;
+
+/**
+ * Measures how the {@link FactoryProcessor} scales with the number of @Factory annotated classes.
+ * Generates synthetic sources (see {@link SyntheticSources}), compiles them in-process and prints
+ * the time, the allocated memory and the number of created files of every processing round.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar \
+ *     com.hannesdorfmann.annotationprocessing101.factory.benchmark.ProcessorHarness \
+ *     &lt;classes&gt; &lt;groups&gt; [iterations] [-Akey=value ...]
+ * </pre>
+ *
+ * <p>
+ * The first iterations warm up javac and the processor. Every iteration compiles into a new
+ * temporary directory.
+ * </p>
+ *
+ * @author Hannes Dorfmann
+ */
+public class ProcessorHarness {
+
+  private static final int DEFAULT_ITERATIONS = 5;
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 2) {
+      System.err.println(
+          "Usage: ProcessorHarness <classes> <groups> [iterations] [-Akey=value ...]");
+      System.exit(1);
+    }
+
+    int classes = Integer.parseInt(args[0]);
+    int groups = Integer.parseInt(args[1]);
+    int iterations = DEFAULT_ITERATIONS;
+    Map<String, String> options = new LinkedHashMap<String, String>();
+    for (int i = 2; i < args.length; i++) {
+      if (args[i].startsWith("-A")) {
+        int separator = args[i].indexOf('=');
+        if (separator < 0) {
+          options.put(args[i].substring(2), "");
+        } else {
+          options.put(args[i].substring(2, separator), args[i].substring(separator + 1));
+        }
+      } else {
+        iterations = Integer.parseInt(args[i]);
+      }
+    }
+
+    System.out.printf(Locale.US, "%d classes in %d groups, options %s%n", classes, groups,
+        options);
+
+    for (int iteration = 1; iteration <= iterations; iteration++) {
+      List<JavaFileObject> sources = SyntheticSources.create(classes, groups);
+      RecordingProcessor processor = new RecordingProcessor(new FactoryProcessor());
+      File outputDir = Files.createTempDirectory("factory-harness").toFile();
+      FactoryCompiler compiler = new FactoryCompiler(outputDir);
+
+      long allocatedBefore = RecordingProcessor.allocatedBytes();
+      long start = System.nanoTime();
+      try {
+        compiler.compile(sources, options, processor);
+      } finally {
+        compiler.delete();
+      }
+      long nanos = System.nanoTime() - start;
+      long allocatedAfter = RecordingProcessor.allocatedBytes();
+
+      long processNanos = 0;
+      for (RecordingProcessor.Round round : processor.getRounds()) {
+        processNanos += round.getNanos();
+      }
+
+      System.out.printf(Locale.US,
+          "Iteration %d: compilation %.1f ms (%s), thereof process() %.1f ms%n", iteration,
+          nanos / 1e6, RecordingProcessor.formatBytes(
+              allocatedBefore < 0 ? -1 : allocatedAfter - allocatedBefore), processNanos / 1e6);
+      for (RecordingProcessor.Round round : processor.getRounds()) {
+        System.out.println("  " + round);
+      }
+    }
+  }
+}
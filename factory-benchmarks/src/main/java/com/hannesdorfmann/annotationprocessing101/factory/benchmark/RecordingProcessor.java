@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hannesdorfmann.annotationprocessing101.factory.benchmark;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.processing.Completion;
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.Processor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.FileObject;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+
+/**
+ * Wraps an annotation processor and records the time, the allocated memory and the number of
+ * created files of every processing round.
+ *
+ * <p>
+ * Allocations are measured for the compiler thread only, so work the processor hands to other
+ * threads (like <code>-Afactory.parallel=true</code>) is not included.
+ * </p>
+ *
+ * @author Hannes Dorfmann
+ */
+public class RecordingProcessor implements Processor {
+
+  /**
+   * The measurements of a single processing round
+   */
+  public static class Round {
+
+    private final int number;
+    private final int rootElements;
+    private final long nanos;
+    private final long allocatedBytes;
+    private final int createdFiles;
+
+    Round(int number, int rootElements, long nanos, long allocatedBytes, int createdFiles) {
+      this.number = number;
+      this.rootElements = rootElements;
+      this.nanos = nanos;
+      this.allocatedBytes = allocatedBytes;
+      this.createdFiles = createdFiles;
+    }
+
+    public int getNumber() {
+      return number;
+    }
+
+    /**
+     * Get the number of root elements (the types of this round) javac passed to the processor
+     */
+    public int getRootElements() {
+      return rootElements;
+    }
+
+    /**
+     * Get the time spent in process()
+     */
+    public long getNanos() {
+      return nanos;
+    }
+
+    /**
+     * Get the bytes allocated by process(), or -1 if the JVM can't measure it
+     */
+    public long getAllocatedBytes() {
+      return allocatedBytes;
+    }
+
+    /**
+     * Get the number of source, class and resource files created with the Filer
+     */
+    public int getCreatedFiles() {
+      return createdFiles;
+    }
+
+    @Override public String toString() {
+      return String.format(Locale.US, "round %d: %d root elements, %.1f ms, %s, %d files", number,
+          rootElements, nanos / 1e6, formatBytes(allocatedBytes), createdFiles);
+    }
+  }
+
+  private final Processor delegate;
+  private final List<Round> rounds = new ArrayList<Round>();
+  private int createdFiles;
+
+  public RecordingProcessor(Processor delegate) {
+    this.delegate = delegate;
+  }
+
+  /**
+   * Get the measurements of all rounds so far
+   */
+  public List<Round> getRounds() {
+    return Collections.unmodifiableList(rounds);
+  }
+
+  @Override public Set<String> getSupportedOptions() {
+    return delegate.getSupportedOptions();
+  }
+
+  @Override public Set<String> getSupportedAnnotationTypes() {
+    return delegate.getSupportedAnnotationTypes();
+  }
+
+  @Override public SourceVersion getSupportedSourceVersion() {
+    return delegate.getSupportedSourceVersion();
+  }
+
+  @Override public void init(ProcessingEnvironment processingEnv) {
+    delegate.init(new CountingProcessingEnvironment(processingEnv));
+  }
+
+  @Override
+  public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+    int filesBefore = createdFiles;
+    long allocatedBefore = allocatedBytes();
+    long start = System.nanoTime();
+
+    boolean claimed = delegate.process(annotations, roundEnv);
+
+    long nanos = System.nanoTime() - start;
+    long allocatedAfter = allocatedBytes();
+    rounds.add(new Round(rounds.size() + 1, roundEnv.getRootElements().size(), nanos,
+        allocatedBefore < 0 ? -1 : allocatedAfter - allocatedBefore, createdFiles - filesBefore));
+    return claimed;
+  }
+
+  @Override public Iterable<? extends Completion> getCompletions(Element element,
+      AnnotationMirror annotation, ExecutableElement member, String userText) {
+    return delegate.getCompletions(element, annotation, member, userText);
+  }
+
+  /**
+   * Get the bytes allocated by the current thread so far, or -1 if the JVM can't measure it
+   */
+  static long allocatedBytes() {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean) {
+      com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+      if (sunBean.isThreadAllocatedMemorySupported() && sunBean.isThreadAllocatedMemoryEnabled()) {
+        return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+      }
+    }
+    return -1;
+  }
+
+  static String formatBytes(long bytes) {
+    if (bytes < 0) {
+      return "n/a";
+    }
+    return String.format(Locale.US, "%.1f MB", bytes / (1024.0 * 1024.0));
+  }
+
+  /**
+   * Passes everything to the original environment, but counts the files created with the Filer
+   */
+  private class CountingProcessingEnvironment implements ProcessingEnvironment {
+
+    private final ProcessingEnvironment env;
+    private final Filer filer;
+
+    CountingProcessingEnvironment(ProcessingEnvironment env) {
+      this.env = env;
+      this.filer = new CountingFiler(env.getFiler());
+    }
+
+    @Override public Map<String, String> getOptions() {
+      return env.getOptions();
+    }
+
+    @Override public Messager getMessager() {
+      return env.getMessager();
+    }
+
+    @Override public Filer getFiler() {
+      return filer;
+    }
+
+    @Override public Elements getElementUtils() {
+      return env.getElementUtils();
+    }
+
+    @Override public Types getTypeUtils() {
+      return env.getTypeUtils();
+    }
+
+    @Override public SourceVersion getSourceVersion() {
+      return env.getSourceVersion();
+    }
+
+    @Override public Locale getLocale() {
+      return env.getLocale();
+    }
+  }
+
+  private class CountingFiler implements Filer {
+
+    private final Filer filer;
+
+    CountingFiler(Filer filer) {
+      this.filer = filer;
+    }
+
+    @Override public JavaFileObject createSourceFile(CharSequence name,
+        Element... originatingElements) throws IOException {
+      JavaFileObject file = filer.createSourceFile(name, originatingElements);
+      createdFiles++;
+      return file;
+    }
+
+    @Override public JavaFileObject createClassFile(CharSequence name,
+        Element... originatingElements) throws IOException {
+      JavaFileObject file = filer.createClassFile(name, originatingElements);
+      createdFiles++;
+      return file;
+    }
+
+    @Override public FileObject createResource(JavaFileManager.Location location,
+        CharSequence pkg, CharSequence relativeName, Element... originatingElements)
+        throws IOException {
+      FileObject file = filer.createResource(location, pkg, relativeName, originatingElements);
+      createdFiles++;
+      return file;
+    }
+
+    @Override public FileObject getResource(JavaFileManager.Location location, CharSequence pkg,
+        CharSequence relativeName) throws IOException {
+      return filer.getResource(location, pkg, relativeName);
+    }
+  }
+}
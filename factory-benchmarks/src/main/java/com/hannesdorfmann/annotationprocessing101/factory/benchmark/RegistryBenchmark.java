@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hannesdorfmann.annotationprocessing101.factory.benchmark;
+
+import com.hannesdorfmann.annotationprocessing101.factory.processor.FactoryOptions;
+import java.lang.reflect.Method;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import javax.tools.JavaFileObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the read side of the runtime registry ({@link FactoryOptions#REGISTRY}) with all
+ * available threads, compared with a factory without registry.
+ *
+ * @author Hannes Dorfmann
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(Threads.MAX)
+@State(Scope.Benchmark)
+public class RegistryBenchmark {
+
+  /**
+   * The factory and the id that is passed to it
+   */
+  public enum Variant {
+    /**
+     * create() of a generated id, factory without registry
+     */
+    STATIC,
+
+    /**
+     * create() of a generated id
+     */
+    REGISTRY_GENERATED,
+
+    /**
+     * create() of a registered id
+     */
+    REGISTRY_REGISTERED,
+
+    /**
+     * tryCreate() of an unknown id
+     */
+    REGISTRY_UNKNOWN
+  }
+
+  private static final String REGISTERED_ID = "registered-product";
+
+  @Param({ "100" })
+  public int size;
+
+  @Param({ "STATIC", "REGISTRY_GENERATED", "REGISTRY_REGISTERED", "REGISTRY_UNKNOWN" })
+  public Variant variant;
+
+  private FactoryCompiler compiler;
+  private URLClassLoader classLoader;
+  private Creator creator;
+  private String id;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    Map<String, String> options = new HashMap<String, String>();
+    List<JavaFileObject> sources = SyntheticSources.create(size, 1);
+    if (variant != Variant.STATIC) {
+      options.put(FactoryOptions.REGISTRY, "true");
+      sources.add(SyntheticSources.tryCreator(0));
+    }
+
+    compiler = new FactoryCompiler(Files.createTempDirectory("registry-benchmark").toFile());
+    compiler.compile(sources, options);
+    classLoader = compiler.newClassLoader();
+
+    String creatorName = variant == Variant.REGISTRY_UNKNOWN ? SyntheticSources.tryCreatorName(0)
+        : SyntheticSources.creatorName(0);
+    creator = (Creator) classLoader.loadClass(creatorName).getDeclaredConstructor().newInstance();
+
+    if (variant != Variant.STATIC) {
+      final Class<?> productClass = classLoader.loadClass(SyntheticSources.PACKAGE + ".Product0");
+      // The generated factory isn't public
+      Method register = classLoader.loadClass(SyntheticSources.PACKAGE + ".Group0Factory")
+          .getMethod("register", String.class, Supplier.class);
+      register.setAccessible(true);
+      register.invoke(null, REGISTERED_ID, new Supplier<Object>() {
+        @Override public Object get() {
+          try {
+            return productClass.getDeclaredConstructor().newInstance();
+          } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+          }
+        }
+      });
+    }
+
+    switch (variant) {
+      case REGISTRY_REGISTERED:
+        id = REGISTERED_ID;
+        break;
+      case REGISTRY_UNKNOWN:
+        id = "unknown-product";
+        break;
+      default:
+        id = SyntheticSources.id(size - 1);
+        break;
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    classLoader.close();
+    compiler.delete();
+  }
+
+  @Benchmark
+  public Object create() {
+    return creator.create(id);
+  }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hannesdorfmann.annotationprocessing101.factory.benchmark;
+
+import com.hannesdorfmann.annotationprocessing101.factory.processor.DispatchStrategy;
+import com.hannesdorfmann.annotationprocessing101.factory.processor.FactoryOptions;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.tools.JavaFileObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the startup costs of a factory: loading (and verifying) the factory in a fresh class
+ * loader and the first call of create(). The type of the group is an abstract class, because the
+ * verifier has to load every class a method returns as such a type. The generated factories are
+ * compared with a hand written if-chain that is written the way the processor used to generate
+ * create(), see {@link SyntheticSources#baselineCreator(int)}.
+ *
+ * @author Hannes Dorfmann
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 20)
+@Measurement(iterations = 50)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StartupBenchmark {
+
+  /**
+   * Which factory is loaded
+   */
+  public enum Variant {
+    /**
+     * The hand written if-chain, see {@link SyntheticSources#baselineCreator(int)}
+     */
+    BASELINE,
+
+    IF_CHAIN,
+
+    SWITCH,
+
+    PERFECT_HASH
+  }
+
+  @Param({ "100", "1000" })
+  public int size;
+
+  @Param({ "BASELINE", "IF_CHAIN", "SWITCH", "PERFECT_HASH" })
+  public Variant variant;
+
+  private FactoryCompiler compiler;
+  private String creatorName;
+  private URLClassLoader classLoader;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    Map<String, String> options = new HashMap<String, String>();
+    List<JavaFileObject> sources = SyntheticSources.create(size, 1, true);
+    if (variant == Variant.BASELINE) {
+      sources.add(SyntheticSources.baselineCreator(size));
+      creatorName = SyntheticSources.baselineCreatorName();
+    } else {
+      options.put(FactoryOptions.DISPATCH, DispatchStrategy.valueOf(variant.name()).name());
+      creatorName = SyntheticSources.creatorName(0);
+    }
+
+    compiler = new FactoryCompiler(Files.createTempDirectory("startup-benchmark").toFile());
+    compiler.compile(sources, options);
+  }
+
+  @Setup(Level.Invocation)
+  public void newClassLoader() throws Exception {
+    classLoader = compiler.newClassLoader();
+  }
+
+  @TearDown(Level.Invocation)
+  public void closeClassLoader() throws Exception {
+    classLoader.close();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    compiler.delete();
+  }
+
+  @Benchmark
+  public Object firstCreate() throws Exception {
+    Creator creator =
+        (Creator) classLoader.loadClass(creatorName).getDeclaredConstructor().newInstance();
+    return creator.create(SyntheticSources.id(0));
+  }
+}
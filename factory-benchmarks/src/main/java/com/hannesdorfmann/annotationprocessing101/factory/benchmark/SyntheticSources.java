@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hannesdorfmann.annotationprocessing101.factory.benchmark;
+
+import com.hannesdorfmann.annotationprocessing101.factory.processor.FactoryOptions;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+
+/**
+ * Generates the source code of @Factory annotated classes. The classes are spread over a given
+ * number of groups: class <code>i</code> has the id <code>"product-i"</code> and belongs to the
+ * group <code>i % groups</code>. Every group gets an empty interface (or abstract class)
+ * <code>Group&lt;n&gt;</code> (the factory type) and a {@link Creator} named
+ * <code>Group&lt;n&gt;Creator</code> that calls the generated <code>Group&lt;n&gt;Factory</code>.
+ *
+ * @author Hannes Dorfmann
+ */
+public class SyntheticSources {
+
+  /**
+   * The package of all generated classes
+   */
+  public static final String PACKAGE = "synthetic";
+
+  private SyntheticSources() {
+  }
+
+  /**
+   * Get the id of the class with the given index
+   */
+  public static String id(int index) {
+    return "product-" + index;
+  }
+
+  /**
+   * Get the qualified name of the {@link Creator} of a group
+   */
+  public static String creatorName(int group) {
+    return PACKAGE + ".Group" + group + "Creator";
+  }
+
+  /**
+   * Get the qualified name of the {@link Creator} returned by {@link #baselineCreator(int)}
+   */
+  public static String baselineCreatorName() {
+    return PACKAGE + ".Group0BaselineCreator";
+  }
+
+  /**
+   * Generates the sources with an interface as type of every group, see
+   * {@link #create(int, int, boolean)}
+   */
+  public static List<JavaFileObject> create(int classes, int groups) {
+    return create(classes, groups, false);
+  }
+
+  /**
+   * Generates the sources. The @Factory annotated classes are returned in the order of their
+   * index, so the class with index 0 is the first one the processor sees.
+   *
+   * @param classes the number of @Factory annotated classes
+   * @param groups the number of groups (factories)
+   * @param abstractGroups true if the type of the groups should be an abstract class instead of an
+   * interface
+   * @return the sources
+   */
+  public static List<JavaFileObject> create(int classes, int groups, boolean abstractGroups) {
+    if (classes < 1 || groups < 1 || groups > classes) {
+      throw new IllegalArgumentException(
+          String.format("Can't spread %d classes over %d groups", classes, groups));
+    }
+
+    List<JavaFileObject> sources = new ArrayList<JavaFileObject>(classes + 2 * groups);
+    for (int i = 0; i < classes; i++) {
+      int group = i % groups;
+      sources.add(source("Product" + i,
+          "@com.hannesdorfmann.annotationprocessing101.factory.annotation.Factory(type = Group"
+              + group + ".class, id = \"" + id(i) + "\")\n"
+              + "public class Product" + i + (abstractGroups ? " extends" : " implements")
+              + " Group" + group + " {\n"
+              + "}\n"));
+    }
+
+    for (int group = 0; group < groups; group++) {
+      sources.add(source("Group" + group,
+          (abstractGroups ? "public abstract class Group" : "public interface Group") + group
+              + " {\n}\n"));
+      sources.add(source("Group" + group + "Creator",
+          "public class Group" + group + "Creator implements " + Creator.class.getCanonicalName()
+              + " {\n"
+              + "  private final Group" + group + "Factory factory = new Group" + group
+              + "Factory();\n"
+              + "  @Override public Object create(String id) {\n"
+              + "    return factory.create(id);\n"
+              + "  }\n"
+              + "}\n"));
+    }
+
+    return sources;
+  }
+
+  /**
+   * Get the qualified name of the {@link Creator} returned by {@link #tryCreator(int)}
+   */
+  public static String tryCreatorName(int group) {
+    return PACKAGE + ".Group" + group + "TryCreator";
+  }
+
+  /**
+   * Generates a {@link Creator} that calls tryCreate(id) of the generated factory of a group. The
+   * factory must be generated with {@link FactoryOptions#REGISTRY}.
+   */
+  public static JavaFileObject tryCreator(int group) {
+    return source("Group" + group + "TryCreator",
+        "public class Group" + group + "TryCreator implements " + Creator.class.getCanonicalName()
+            + " {\n"
+            + "  private final Group" + group + "Factory factory = new Group" + group
+            + "Factory();\n"
+            + "  @Override public Object create(String id) {\n"
+            + "    return factory.tryCreate(id);\n"
+            + "  }\n"
+            + "}\n");
+  }
+
+  /**
+   * Generates a {@link Creator} for group 0 that is written the way the processor used to generate
+   * create(): a chain of <code>if (id.equals(...)) return new Product...();</code>. Used as baseline
+   * for the generated factories.
+   *
+   * @param classes the number of @Factory annotated classes passed to {@link #create(int, int,
+   * boolean)} with a single group
+   */
+  public static JavaFileObject baselineCreator(int classes) {
+    StringBuilder body = new StringBuilder();
+    body.append("public class Group0BaselineCreator implements ")
+        .append(Creator.class.getCanonicalName())
+        .append(" {\n")
+        .append("  @Override public Object create(String id) {\n")
+        .append("    return createGroup0(id);\n")
+        .append("  }\n")
+        .append("  private Group0 createGroup0(String id) {\n");
+    for (int i = 0; i < classes; i++) {
+      body.append("    if (\"").append(id(i)).append("\".equals(id)) {\n")
+          .append("      return new Product").append(i).append("();\n")
+          .append("    }\n");
+    }
+    body.append("    throw new IllegalArgumentException(\"Unknown id = \" + id);\n")
+        .append("  }\n")
+        .append("}\n");
+    return source("Group0BaselineCreator", body.toString());
+  }
+
+  private static JavaFileObject source(String simpleName, String body) {
+    final String code = "package " + PACKAGE + ";\n\n" + body;
+    URI uri = URI.create("string:///" + PACKAGE.replace('.', '/') + "/" + simpleName
+        + JavaFileObject.Kind.SOURCE.extension);
+    return new SimpleJavaFileObject(uri, JavaFileObject.Kind.SOURCE) {
+      @Override public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+        return code;
+      }
+    };
+  }
+}
@@ -25,6 +25,8 @@ import java.io.InputStreamReader;
  */
 public class PizzaStore_HandWritten {
 
+  private static final Espresso ESPRESSO = new Espresso();
+
   public Meal order(String mealName) {
 
     if (mealName == null) {
@@ -43,6 +45,10 @@ public class PizzaStore_HandWritten {
       return new Tiramisu();
     }
 
+    if ("Espresso".equals(mealName)) {
+      return ESPRESSO;
+    }
+
     throw new IllegalArgumentException("Unknown meal '" + mealName + "'");
   }
 
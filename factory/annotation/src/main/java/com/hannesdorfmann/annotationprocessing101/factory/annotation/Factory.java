@@ -37,4 +37,35 @@ import java.lang.annotation.Target;
    * The identifier for determining which item should be instantiated
    */
   String id();
+
+  /**
+   * Value of {@link #intId()} for classes that have no numeric identifier
+   */
+  int NO_INT_ID = Integer.MIN_VALUE;
+
+  /**
+   * An optional numeric identifier. If set, the generated factory offers a create(int) method
+   * in addition to create(String) that doesn't need to hash or compare strings.
+   */
+  int intId() default NO_INT_ID;
+
+  /**
+   * If greater than 0, the generated factory keeps up to this number of released instances per
+   * thread and offers acquire(id) and release(instance) to reuse them. The annotated class must
+   * implement {@link Poolable}.
+   */
+  int poolSize() default 0;
+
+  /**
+   * Whether create() returns a new instance or a shared one
+   */
+  Scope scope() default Scope.PROTOTYPE;
+
+  /**
+   * The parameter types of the public constructor the generated factory calls. The generated
+   * create methods take the arguments after the id and pass them straight to the constructor. All
+   * classes of the same factory must specify the same types. By default the empty constructor is
+   * used.
+   */
+  Class[] args() default {};
 }
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hannesdorfmann.annotationprocessing101.factory.processor;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.commons.lang3.StringEscapeUtils;
+
+/**
+ * The recorded number of created instances per id, read from the file specified by {@link
+ * FactoryOptions#PROFILE}. The file is UTF-8 encoded and has one line per id with the qualified
+ * group name, the id (escaped like a java string literal, but without the quotes) and the count
+ * separated by tabs. That's the format of profile() of a factory generated with {@link
+ * FactoryOptions#METRICS}. Lines starting with # are comments. The counts of the same id are
+ * summed up, so the profiles of multiple runs can simply be concatenated.
+ *
+ * @author Hannes Dorfmann
+ */
+public class DispatchProfile {
+
+  private final Map<String, Map<String, Long>> counts = new HashMap<String, Map<String, Long>>();
+
+  private DispatchProfile() {
+  }
+
+  /**
+   * Reads a profile
+   *
+   * @throws IOException if the file can't be read or has an invalid line
+   */
+  public static DispatchProfile read(File file) throws IOException {
+    DispatchProfile profile = new DispatchProfile();
+    BufferedReader reader =
+        new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+    try {
+      String line;
+      int lineNumber = 0;
+      while ((line = reader.readLine()) != null) {
+        lineNumber++;
+        if (line.trim().length() == 0 || line.startsWith("#")) {
+          continue;
+        }
+
+        String[] columns = line.split("\t");
+        long count = -1;
+        if (columns.length == 3) {
+          try {
+            count = Long.parseLong(columns[2].trim());
+          } catch (NumberFormatException e) {
+            // Reported below
+          }
+        }
+        if (count < 0) {
+          throw new IOException(
+              String.format("Invalid line %d in %s: %s", lineNumber, file, line));
+        }
+
+        Map<String, Long> groupCounts = profile.counts.get(columns[0]);
+        if (groupCounts == null) {
+          groupCounts = new HashMap<String, Long>();
+          profile.counts.put(columns[0], groupCounts);
+        }
+        String id = StringEscapeUtils.unescapeJava(columns[1]);
+        Long previous = groupCounts.get(id);
+        groupCounts.put(id, previous == null ? count : previous + count);
+      }
+    } finally {
+      reader.close();
+    }
+    return profile;
+  }
+
+  /**
+   * Get the counts by id of a group
+   *
+   * @param qualifiedGroupName the qualified name of the group type
+   * @return the counts, empty if the profile doesn't contain the group
+   */
+  public Map<String, Long> getCounts(String qualifiedGroupName) {
+    Map<String, Long> groupCounts = counts.get(qualifiedGroupName);
+    if (groupCounts == null) {
+      return Collections.emptyMap();
+    }
+    return Collections.unmodifiableMap(groupCounts);
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hannesdorfmann.annotationprocessing101.factory.processor;
+
+/**
+ * Defines how the generated factory's create() method finds the class that belongs to a given id.
+ * Can be set for all factories with the processor option {@link FactoryOptions#DISPATCH}.
+ *
+ * @author Hannes Dorfmann
+ */
+public enum DispatchStrategy {
+
+  /**
+   * Generates one <code>if ("id".equals(id))</code> block per @Factory annotated class, in the
+   * order of {@link IdOrder}
+   */
+  IF_CHAIN,
+
+  /**
+   * Generates a <code>switch (id)</code> statement, so the lookup doesn't depend on the position of
+   * the id in the if chain
+   */
+  SWITCH,
+
+  /**
+   * Generates a minimal perfect hash table at compile time (see {@link PerfectHash}). An id is
+   * resolved with one hash, one array index and one equals(). Falls back to {@link #SWITCH} if two
+   * ids have the same hash code.
+   */
+  PERFECT_HASH,
+
+  /**
+   * Picks {@link #IF_CHAIN}, {@link #SWITCH} or {@link #PERFECT_HASH} depending on the number of
+   * ids in the group
+   */
+  AUTO;
+
+  /**
+   * Groups with up to this number of ids will use {@link #IF_CHAIN} in {@link #AUTO} mode. For so
+   * few ids a couple of equals() calls are cheaper than computing the hash code of the id.
+   */
+  static final int MAX_IF_CHAIN_SIZE = 3;
+
+  /**
+   * Groups with at least this number of ids will use {@link #PERFECT_HASH} in {@link #AUTO} mode.
+   * Below that the hash code lookup of a switch needs only a few (well predicted) comparisons.
+   */
+  static final int MIN_PERFECT_HASH_SIZE = 128;
+
+  /**
+   * Get the strategy for the value of the processor option {@link FactoryOptions#DISPATCH}
+   *
+   * @param value the value of the option, may be null
+   * @return the strategy
+   * @throws IllegalArgumentException if the value is not a known strategy
+   */
+  public static DispatchStrategy fromOption(String value) {
+    if (value == null || value.length() == 0) {
+      return AUTO;
+    }
+
+    for (DispatchStrategy strategy : values()) {
+      if (strategy.name().equalsIgnoreCase(value)) {
+        return strategy;
+      }
+    }
+
+    throw new IllegalArgumentException(
+        String.format("Unknown value '%s' for option %s", value, FactoryOptions.DISPATCH));
+  }
+
+  /**
+   * Resolves {@link #AUTO} to a concrete strategy for the given number of ids
+   *
+   * @param numberOfIds the number of ids in the factory group
+   * @return the concrete strategy
+   */
+  public DispatchStrategy resolve(int numberOfIds) {
+    if (this != AUTO) {
+      return this;
+    }
+    if (numberOfIds <= MAX_IF_CHAIN_SIZE) {
+      return IF_CHAIN;
+    }
+    return numberOfIds < MIN_PERFECT_HASH_SIZE ? SWITCH : PERFECT_HASH;
+  }
+}
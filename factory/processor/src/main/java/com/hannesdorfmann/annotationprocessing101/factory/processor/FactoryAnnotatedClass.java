@@ -16,9 +16,18 @@
 package com.hannesdorfmann.annotationprocessing101.factory.processor;
 
 import com.hannesdorfmann.annotationprocessing101.factory.annotation.Factory;
+import com.hannesdorfmann.annotationprocessing101.factory.annotation.Scope;
+import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.TypeName;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javax.lang.model.element.Element;
 import javax.lang.model.element.TypeElement;
 import javax.lang.model.type.DeclaredType;
 import javax.lang.model.type.MirroredTypeException;
+import javax.lang.model.type.MirroredTypesException;
+import javax.lang.model.type.TypeMirror;
 import org.apache.commons.lang3.StringUtils;
 
 /**
@@ -29,15 +38,26 @@ import org.apache.commons.lang3.StringUtils;
 public class FactoryAnnotatedClass {
 
   private TypeElement annotatedClassElement;
+  private String qualifiedClassName;
+  private String simpleClassName;
+  private ClassName className;
   private String qualifiedGroupClassName;
   private String simpleFactoryGroupName;
   private String id;
+  private int intId;
+  private int poolSize;
+  private Scope scope;
+  private List<TypeName> args;
+  private List<TypeName> constructorParameterTypes;
 
   /**
    * @throws ProcessingException if id() from annotation is null
    */
   public FactoryAnnotatedClass(TypeElement classElement) throws ProcessingException {
     this.annotatedClassElement = classElement;
+    qualifiedClassName = classElement.getQualifiedName().toString();
+    simpleClassName = classElement.getSimpleName().toString();
+    className = ClassName.get(classElement);
     Factory annotation = classElement.getAnnotation(Factory.class);
     id = annotation.id();
 
@@ -47,16 +67,53 @@ public class FactoryAnnotatedClass {
           Factory.class.getSimpleName(), classElement.getQualifiedName().toString());
     }
 
+    intId = annotation.intId();
+    poolSize = annotation.poolSize();
+    scope = annotation.scope();
+
+    if (poolSize < 0) {
+      throw new ProcessingException(classElement,
+          "poolSize() in @%s for class %s is negative! that's not allowed",
+          Factory.class.getSimpleName(), classElement.getQualifiedName().toString());
+    }
+
     // Get the full QualifiedTypeName
+    qualifiedGroupClassName = getQualifiedGroupName(classElement);
+    simpleFactoryGroupName =
+        qualifiedGroupClassName.substring(qualifiedGroupClassName.lastIndexOf('.') + 1);
+
+    // Get the constructor parameter types
+    List<TypeName> argTypes = new ArrayList<TypeName>();
     try {
-      Class<?> clazz = annotation.type();
-      qualifiedGroupClassName = clazz.getCanonicalName();
-      simpleFactoryGroupName = clazz.getSimpleName();
+      for (Class<?> clazz : annotation.args()) {
+        argTypes.add(TypeName.get(clazz));
+      }
+    } catch (MirroredTypesException mte) {
+      for (TypeMirror argTypeMirror : mte.getTypeMirrors()) {
+        argTypes.add(TypeName.get(argTypeMirror));
+      }
+    }
+    args = Collections.unmodifiableList(argTypes);
+  }
+
+  /**
+   * Get the full qualified name of the type specified in {@link Factory#type()} of an element. Works
+   * for any element annotated with @Factory, even if it isn't a valid {@link
+   * FactoryAnnotatedClass}.
+   *
+   * @return the qualified name or null, if the element isn't annotated with @Factory
+   */
+  public static String getQualifiedGroupName(Element element) {
+    Factory annotation = element.getAnnotation(Factory.class);
+    if (annotation == null) {
+      return null;
+    }
+    try {
+      return annotation.type().getCanonicalName();
     } catch (MirroredTypeException mte) {
       DeclaredType classTypeMirror = (DeclaredType) mte.getTypeMirror();
       TypeElement classTypeElement = (TypeElement) classTypeMirror.asElement();
-      qualifiedGroupClassName = classTypeElement.getQualifiedName().toString();
-      simpleFactoryGroupName = classTypeElement.getSimpleName().toString();
+      return classTypeElement.getQualifiedName().toString();
     }
   }
 
@@ -68,6 +125,79 @@ public class FactoryAnnotatedClass {
     return id;
   }
 
+  /**
+   * Get the numeric id as specified in {@link Factory#intId()}.
+   *
+   * @return the numeric id or {@link Factory#NO_INT_ID}
+   */
+  public int getIntId() {
+    return intId;
+  }
+
+  /**
+   * Checks if a numeric id is specified in {@link Factory#intId()}
+   */
+  public boolean hasIntId() {
+    return intId != Factory.NO_INT_ID;
+  }
+
+  /**
+   * Get the max number of pooled instances per thread as specified in {@link Factory#poolSize()}
+   */
+  public int getPoolSize() {
+    return poolSize;
+  }
+
+  /**
+   * Checks if released instances should be pooled, see {@link Factory#poolSize()}
+   */
+  public boolean isPooled() {
+    return poolSize > 0;
+  }
+
+  /**
+   * Get the scope as specified in {@link Factory#scope()}
+   */
+  public Scope getScope() {
+    return scope;
+  }
+
+  /**
+   * Checks if create() should always return the same instance
+   */
+  public boolean isSingleton() {
+    return scope == Scope.SINGLETON;
+  }
+
+  /**
+   * Get the constructor parameter types as specified in {@link Factory#args()}
+   */
+  public List<TypeName> getArgs() {
+    return args;
+  }
+
+  /**
+   * Get the (generic) parameter types of the constructor that matches {@link Factory#args()}, or
+   * null if the class hasn't been validated yet
+   */
+  public List<TypeName> getConstructorParameterTypes() {
+    return constructorParameterTypes;
+  }
+
+  /**
+   * Set the (generic) parameter types of the constructor that matches {@link Factory#args()}
+   */
+  public void setConstructorParameterTypes(List<TypeName> constructorParameterTypes) {
+    this.constructorParameterTypes = constructorParameterTypes;
+  }
+
+  /**
+   * Checks if the factory calls a constructor with parameters, see {@link Factory#args()}
+   */
+  public boolean hasArgs() {
+    return !args.isEmpty();
+  }
+
   /**
    * Get the full qualified name of the type specified in  {@link Factory#type()}.
    *
@@ -86,6 +216,27 @@ public class FactoryAnnotatedClass {
     return simpleFactoryGroupName;
   }
 
+  /**
+   * Get the full qualified name of the annotated class
+   */
+  public String getQualifiedClassName() {
+    return qualifiedClassName;
+  }
+
+  /**
+   * Get the simple name of the annotated class
+   */
+  public String getSimpleClassName() {
+    return simpleClassName;
+  }
+
+  /**
+   * Get the name of the annotated class to be used in generated code
+   */
+  public ClassName getClassName() {
+    return className;
+  }
+
   /**
    * The original element that was annotated with @Factory
    */
@@ -17,18 +17,56 @@
 package com.hannesdorfmann.annotationprocessing101.factory.processor;
 
 import com.hannesdorfmann.annotationprocessing101.factory.annotation.Factory;
+import com.hannesdorfmann.annotationprocessing101.factory.annotation.Poolable;
+import com.squareup.javapoet.AnnotationSpec;
+import com.squareup.javapoet.ArrayTypeName;
+import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.CodeBlock;
+import com.squareup.javapoet.FieldSpec;
 import com.squareup.javapoet.JavaFile;
 import com.squareup.javapoet.MethodSpec;
+import com.squareup.javapoet.ParameterSpec;
+import com.squareup.javapoet.ParameterizedTypeName;
 import com.squareup.javapoet.TypeName;
 import com.squareup.javapoet.TypeSpec;
+import com.squareup.javapoet.TypeVariableName;
+import com.squareup.javapoet.WildcardTypeName;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import javax.annotation.processing.Filer;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
 import javax.lang.model.element.Modifier;
 import javax.lang.model.element.PackageElement;
 import javax.lang.model.element.TypeElement;
 import javax.lang.model.util.Elements;
+import javax.tools.FileObject;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
+import org.apache.commons.lang3.StringEscapeUtils;
+import org.apache.commons.lang3.StringUtils;
 
 /**
  * This class holds all {@link FactoryAnnotatedClass}s that belongs to one factory. In other words,
@@ -44,13 +82,166 @@ public class FactoryGroupedClasses {
    */
   private static final String SUFFIX = "Factory";
 
+  /**
+   * The class path directory of the index files, see {@link #writeIndex(Filer)}
+   */
+  public static final String INDEX_DIRECTORY = "META-INF/factory/";
+
+  /**
+   * Will be added to the qualified group name to get the name of the index file
+   */
+  public static final String INDEX_SUFFIX = ".idx";
+
+  /**
+   * Will be added to the name of the factory to get the name of the fingerprint file, see {@link
+   * #computeFingerprint(FactoryOptions)}
+   */
+  public static final String FINGERPRINT_SUFFIX = ".fingerprint";
+
+  /**
+   * The generated code depends on the processor and on JavaPoet, so the code sources (jar files or
+   * class directories) of these classes are part of every fingerprint. A new version of either
+   * never reuses the factories of an old one.
+   */
+  private static final Class<?>[] GENERATOR_CLASSES = {
+      FactoryGroupedClasses.class, JavaFile.class
+  };
+
+  /**
+   * The digest of the code sources of {@link #GENERATOR_CLASSES}, computed once
+   */
+  private static byte[] generatorDigest;
+
+  /**
+   * Generated code is split into methods with at most this number of cases or array elements to
+   * stay below the 64 KB bytecode limit per method.
+   */
+  private static final int CHUNK_SHIFT = 10;
+  private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+
+  private static final ClassName SUPPLIER = ClassName.get("java.util.function", "Supplier");
+  private static final ClassName LONG_ADDER =
+      ClassName.get("java.util.concurrent.atomic", "LongAdder");
+  private static final ClassName ATOMIC_REFERENCE =
+      ClassName.get("java.util.concurrent.atomic", "AtomicReference");
+  private static final ClassName THREAD_LOCAL_RANDOM =
+      ClassName.get("java.util.concurrent", "ThreadLocalRandom");
+
+  /**
+   * {@link MetricsMode#LATENCY} measures one of (SAMPLE_MASK + 1) instance creations
+   */
+  private static final int SAMPLE_MASK = 63;
+
+  /**
+   * An id gets a fast path in front of a switch or perfect hash, if it has at least this share of
+   * all recorded instance creations of its factory, see {@link #applyProfile(Map)}
+   */
+  private static final double FAST_PATH_SHARE = 0.25;
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
   private String qualifiedClassName;
 
-  private Map<String, FactoryAnnotatedClass> itemsMap =
-      new LinkedHashMap<String, FactoryAnnotatedClass>();
+  /**
+   * Will be added to the name of the group to get the name of the generated factory. Has the module
+   * name appended for partial factories, see {@link FactoryOptions#MODULE}.
+   */
+  private String suffix;
+
+  /**
+   * The annotated classes by id, in the order of {@link IdOrder} (or of the profile after {@link
+   * #applyProfile(Map)})
+   */
+  private Map<String, FactoryAnnotatedClass> itemsMap;
+
+  /**
+   * The order of the ids and the ids in this order, if {@link #applyProfile(Map)} has reordered
+   * {@link #itemsMap}. null otherwise.
+   */
+  private IdOrder order;
+  private List<String> orderedIds;
+
+  private SortedMap<Integer, FactoryAnnotatedClass> intIdItemsMap =
+      new TreeMap<Integer, FactoryAnnotatedClass>();
+
+  /**
+   * The constructor parameter types shared by all classes of this group (see {@link
+   * Factory#args()}) including generics. The generated methods take them as arg0 to argN.
+   */
+  private List<TypeName> args;
+
+  /**
+   * The names of the generated holder classes of all singletons by id
+   */
+  private Map<String, String> singletonHolders = new HashMap<String, String>();
+
+  /**
+   * The metrics of the factory that is currently built and the index of the counter of each id
+   */
+  private MetricsMode metricsMode = MetricsMode.OFF;
+  private Map<String, Integer> metricsIndices = new HashMap<String, Integer>();
+
+  /**
+   * The statement of the factory that is currently built for an id that the compiled dispatch of
+   * create() doesn't know
+   */
+  private CodeBlock unknownId;
+  private boolean registryEnabled;
+
+  // Resolved from the javac model by resolve()
+  private TypeElement superClassElement;
+  private String factoryClassName;
+  private String packageName;
+  private TypeName returnType;
+  private boolean classGroup;
+
+  /**
+   * true once the factory has been written. It can't be written again in a later round.
+   */
+  private boolean generated;
+
+  /**
+   * The strategy of create(id), set by {@link #buildJavaFile(FactoryOptions)}
+   */
+  private DispatchStrategy dispatchStrategy;
+
+  /**
+   * The ids with a recorded count in the order of their count and the ids that get a fast path,
+   * set by {@link #applyProfile(Map)}
+   */
+  private List<String> profiledIds = Collections.emptyList();
+  private List<String> fastPathIds = Collections.emptyList();
+
+  /**
+   * Set by {@link #computeFingerprint(FactoryOptions)}, null if it hasn't been called or the
+   * fingerprint couldn't be computed
+   */
+  private String fingerprint;
 
   public FactoryGroupedClasses(String qualifiedClassName) {
+    this(qualifiedClassName, null, IdOrder.DECLARATION);
+  }
+
+  /**
+   * @param qualifiedClassName the qualified name of the group type
+   * @param module the name of the module for a partial factory or null, see {@link
+   * FactoryOptions#MODULE}
+   * @param order the order of the ids in the generated factory
+   */
+  public FactoryGroupedClasses(String qualifiedClassName, String module, IdOrder order) {
     this.qualifiedClassName = qualifiedClassName;
+    this.order = order;
+    if (order == IdOrder.SORTED) {
+      itemsMap = new TreeMap<String, FactoryAnnotatedClass>();
+    } else {
+      itemsMap = new LinkedHashMap<String, FactoryAnnotatedClass>();
+    }
+    if (module == null) {
+      suffix = SUFFIX;
+    } else {
+      // Module names may contain '-' and '.', which aren't allowed in class names
+      suffix = SUFFIX + "_" + module.replace('-', '_').replace('.', '_');
+    }
   }
 
   /**
@@ -61,6 +252,15 @@ public class FactoryGroupedClasses {
    */
   public void add(FactoryAnnotatedClass toInsert) throws ProcessingException {
 
+    if (generated) {
+      throw new ProcessingException(toInsert.getTypeElement(),
+          "The class %s annotated with @%s has been generated after %s%s has already been written. "
+              + "A factory waits for other processors as long as the declarations of the compiled "
+              + "code reference types that haven't been generated yet.",
+          toInsert.getTypeElement().getQualifiedName().toString(), Factory.class.getSimpleName(),
+          qualifiedClassName, suffix);
+    }
+
     FactoryAnnotatedClass existing = itemsMap.get(toInsert.getId());
     if (existing != null) {
 
@@ -71,40 +271,1667 @@ public class FactoryGroupedClasses {
           toInsert.getId(), existing.getTypeElement().getQualifiedName().toString());
     }
 
+    List<TypeName> parameterTypes = toInsert.getConstructorParameterTypes();
+    if (args == null) {
+      args = parameterTypes;
+    } else if (!sameTypes(args, parameterTypes)) {
+      FactoryAnnotatedClass first = itemsMap.values().iterator().next();
+      throw new ProcessingException(toInsert.getTypeElement(),
+          "Conflict: The class %s annotated with @%s has a constructor with the parameters %s but "
+              + "%s of the same factory uses %s. All classes of a factory must have the same args.",
+          toInsert.getTypeElement().getQualifiedName().toString(), Factory.class.getSimpleName(),
+          parameterTypes, first.getTypeElement().getQualifiedName().toString(), args);
+    }
+
+    if (toInsert.hasIntId()) {
+      existing = intIdItemsMap.get(toInsert.getIntId());
+      if (existing != null) {
+        throw new ProcessingException(toInsert.getTypeElement(),
+            "Conflict: The class %s is annotated with @%s with intId = %d but %s already uses the same intId",
+            toInsert.getTypeElement().getQualifiedName().toString(), Factory.class.getSimpleName(),
+            toInsert.getIntId(), existing.getTypeElement().getQualifiedName().toString());
+      }
+      intIdItemsMap.put(toInsert.getIntId(), toInsert);
+    }
+
     itemsMap.put(toInsert.getId(), toInsert);
   }
 
-  public void generateCode(Elements elementUtils, Filer filer) throws IOException {
-    TypeElement superClassName = elementUtils.getTypeElement(qualifiedClassName);
-    String factoryClassName = superClassName.getSimpleName() + SUFFIX;
-    String qualifiedFactoryClassName = qualifiedClassName + SUFFIX;
-    PackageElement pkg = elementUtils.getPackageOf(superClassName);
-    String packageName = pkg.isUnnamed() ? null : pkg.getQualifiedName().toString();
+  /**
+   * Get the qualified name of the type specified in {@link Factory#type()}
+   */
+  public String getQualifiedFactoryGroupName() {
+    return qualifiedClassName;
+  }
 
-    MethodSpec.Builder method = MethodSpec.methodBuilder("create")
+  /**
+   * Get the qualified name of the generated factory
+   */
+  public String getQualifiedFactoryName() {
+    return qualifiedClassName + suffix;
+  }
+
+  /**
+   * Checks if the generated methods take constructor arguments, see {@link Factory#args()}
+   */
+  public boolean hasArgs() {
+    return args != null && !args.isEmpty();
+  }
+
+  /**
+   * Get all annotated classes of this group in the order of the ids in the generated factory
+   */
+  public Collection<FactoryAnnotatedClass> getItems() {
+    return Collections.unmodifiableCollection(itemsMap.values());
+  }
+
+  /**
+   * Get the strategy the last {@link #buildJavaFile(FactoryOptions)} has used for create(id), or
+   * null if the factory hasn't been built yet
+   */
+  public DispatchStrategy getDispatchStrategy() {
+    return dispatchStrategy;
+  }
+
+  /**
+   * Generate the java code
+   *
+   * @param options the processor options
+   * @throws IOException
+   */
+  public void generateCode(Elements elementUtils, Filer filer, FactoryOptions options)
+      throws IOException {
+    resolve(elementUtils);
+    writeJavaFile(filer, buildJavaFile(options));
+  }
+
+  /**
+   * Orders the ids by their recorded number of created instances, the most frequent first (see
+   * {@link FactoryOptions#PROFILE}). Ids without a count keep their order behind them. The ids that
+   * have at least {@link #FAST_PATH_SHARE} of all counts are tested before a switch or perfect hash.
+   * Must be called before the factory is built.
+   *
+   * @param counts the counts by id, unknown ids are ignored
+   */
+  public void applyProfile(final Map<String, Long> counts) {
+    if (orderedIds == null) {
+      orderedIds = new ArrayList<String>(itemsMap.keySet());
+    }
+
+    List<String> ids = new ArrayList<String>();
+    long total = 0;
+    for (Map.Entry<String, Long> count : counts.entrySet()) {
+      if (itemsMap.containsKey(count.getKey()) && count.getValue() > 0) {
+        ids.add(count.getKey());
+        total += count.getValue();
+      }
+    }
+    Collections.sort(ids, new Comparator<String>() {
+      @Override public int compare(String id1, String id2) {
+        int byCount = counts.get(id2).compareTo(counts.get(id1));
+        return byCount != 0 ? byCount : id1.compareTo(id2);
+      }
+    });
+
+    List<String> fastPath = new ArrayList<String>();
+    for (String id : ids) {
+      if (counts.get(id) >= total * FAST_PATH_SHARE) {
+        fastPath.add(id);
+      }
+    }
+
+    Map<String, FactoryAnnotatedClass> ordered = new LinkedHashMap<String, FactoryAnnotatedClass>();
+    for (String id : ids) {
+      ordered.put(id, itemsMap.get(id));
+    }
+    ordered.putAll(itemsMap);
+    itemsMap = ordered;
+    profiledIds = ids;
+    fastPathIds = fastPath;
+  }
+
+  /**
+   * Get the ids in the order of {@link IdOrder}, which {@link #applyProfile(Map)} doesn't change
+   */
+  private List<String> getOrderedIds() {
+    return orderedIds != null ? orderedIds : new ArrayList<String>(itemsMap.keySet());
+  }
+
+  /**
+   * Reads everything from the javac model that {@link #buildJavaFile(FactoryOptions)} needs. The
+   * javac model isn't thread safe, so this must be called on the compiler thread.
+   */
+  public void resolve(Elements elementUtils) {
+    superClassElement = elementUtils.getTypeElement(qualifiedClassName);
+    factoryClassName = superClassElement.getSimpleName() + suffix;
+    PackageElement pkg = elementUtils.getPackageOf(superClassElement);
+    packageName = pkg.isUnnamed() ? null : pkg.getQualifiedName().toString();
+    returnType = TypeName.get(superClassElement.asType());
+    classGroup = superClassElement.getKind() != ElementKind.INTERFACE;
+  }
+
+  /**
+   * Writes the file built by {@link #buildJavaFile(FactoryOptions)}. The {@link Filer} isn't thread
+   * safe, so this must be called on the compiler thread.
+   */
+  public void writeJavaFile(Filer filer, JavaFile javaFile) throws IOException {
+    javaFile.writeTo(filer);
+    writeFingerprint(filer);
+    generated = true;
+  }
+
+  /**
+   * Computes a fingerprint of everything the generated factory depends on: the ids, classes and
+   * annotation attributes of the annotated classes in the order they are generated in, the group
+   * type, the options and the code generator itself. Must be called after {@link
+   * #resolve(Elements)} and {@link #applyProfile(Map)}.
+   *
+   * @return the SHA-256 fingerprint as hex string or null, if it can't be computed
+   */
+  public String computeFingerprint(FactoryOptions options) {
+    fingerprint = null;
+    byte[] generator = getGeneratorDigest();
+    if (generator == null) {
+      return null;
+    }
+
+    StringBuilder inputs = new StringBuilder();
+    inputs.append(packageName).append('\n')
+        .append(factoryClassName).append('\n')
+        .append(returnType).append(classGroup ? " class" : " interface").append('\n')
+        .append(options.getDispatchStrategy()).append(' ')
+        .append(options.isSuppliers()).append(' ')
+        .append(options.getMetricsMode()).append(' ')
+        .append(options.isRegistry()).append(' ')
+        .append(options.isStatic()).append(' ')
+        .append(options.getOrder()).append('\n')
+        .append(StringEscapeUtils.escapeJava(profiledIds.toString())).append('\n')
+        .append(StringEscapeUtils.escapeJava(fastPathIds.toString())).append('\n');
+    if (order == IdOrder.DECLARATION) {
+      // The order of ids() and of the index file
+      inputs.append(StringEscapeUtils.escapeJava(getOrderedIds().toString())).append('\n');
+    }
+    for (FactoryAnnotatedClass item : itemsMap.values()) {
+      inputs.append(StringEscapeUtils.escapeJava(item.getId())).append(' ')
+          .append(item.getQualifiedClassName()).append(' ')
+          .append(item.getIntId()).append(' ')
+          .append(item.getScope()).append(' ')
+          .append(item.getPoolSize()).append(' ')
+          .append(item.getConstructorParameterTypes()).append('\n');
+    }
+
+    MessageDigest digest = newDigest();
+    digest.update(generator);
+    digest.update(inputs.toString().getBytes(UTF_8));
+    fingerprint = toHex(digest.digest());
+    return fingerprint;
+  }
+
+  /**
+   * Writes the factory of the previous compilation again, if it has been generated from the same
+   * inputs. The source is reused byte by byte, so it doesn't have to be built and a build cache
+   * that hashes the generated files gets a hit. Must be called after {@link
+   * #computeFingerprint(FactoryOptions)}.
+   *
+   * @return true if the previous factory has been written, false if it must be built
+   */
+  public boolean rewritePreviousSource(Filer filer) throws IOException {
+    if (fingerprint == null) {
+      return false;
+    }
+
+    String previousSource;
+    try {
+      String previousFingerprint = filer.getResource(StandardLocation.SOURCE_OUTPUT,
+          packageName == null ? "" : packageName, factoryClassName + FINGERPRINT_SUFFIX)
+          .getCharContent(true).toString().trim();
+      if (!fingerprint.equals(previousFingerprint)) {
+        return false;
+      }
+      previousSource = filer.getResource(StandardLocation.SOURCE_OUTPUT,
+          packageName == null ? "" : packageName, factoryClassName + ".java")
+          .getCharContent(true).toString();
+    } catch (IOException e) {
+      // Not generated before (or deleted), so there is nothing to reuse
+      return false;
+    }
+
+    // Guards against a source file that has been changed or replaced since
+    if (!previousSource.startsWith(fileComment())) {
+      return false;
+    }
+
+    JavaFileObject file = filer.createSourceFile(
+        packageName == null ? factoryClassName : packageName + "." + factoryClassName,
+        originatingElements());
+    Writer writer = file.openWriter();
+    try {
+      writer.write(previousSource);
+    } finally {
+      writer.close();
+    }
+    writeFingerprint(filer);
+    generated = true;
+    return true;
+  }
+
+  /**
+   * Writes the fingerprint next to the generated source
+   */
+  private void writeFingerprint(Filer filer) throws IOException {
+    if (fingerprint == null) {
+      return;
+    }
+    FileObject file = filer.createResource(StandardLocation.SOURCE_OUTPUT,
+        packageName == null ? "" : packageName, factoryClassName + FINGERPRINT_SUFFIX,
+        originatingElements());
+    Writer writer = file.openWriter();
+    try {
+      writer.write(fingerprint + "\n");
+    } finally {
+      writer.close();
+    }
+  }
+
+  /**
+   * Get the first line of the generated source
+   */
+  private String fileComment() {
+    return "// Generated by FactoryProcessor, fingerprint " + fingerprint;
+  }
+
+  private Element[] originatingElements() {
+    Element[] originatingElements = new Element[itemsMap.size() + 1];
+    originatingElements[0] = superClassElement;
+    int i = 1;
+    for (FactoryAnnotatedClass item : itemsMap.values()) {
+      originatingElements[i++] = item.getTypeElement();
+    }
+    return originatingElements;
+  }
+
+  private static synchronized byte[] getGeneratorDigest() {
+    if (generatorDigest == null) {
+      MessageDigest digest = newDigest();
+      try {
+        for (Class<?> generatorClass : GENERATOR_CLASSES) {
+          CodeSource codeSource = generatorClass.getProtectionDomain().getCodeSource();
+          if (codeSource == null || codeSource.getLocation() == null) {
+            return null;
+          }
+          File location = new File(codeSource.getLocation().toURI());
+          if (location.isFile()) {
+            updateDigest(digest, location);
+            continue;
+          }
+
+          // A class directory, so hash the class files of the package (including the nested and
+          // anonymous classes) in a stable order
+          String className = generatorClass.getName();
+          File packageDirectory = new File(location,
+              className.substring(0, className.lastIndexOf('.')).replace('.', File.separatorChar));
+          File[] files = packageDirectory.listFiles();
+          if (files == null) {
+            return null;
+          }
+          Arrays.sort(files);
+          for (File file : files) {
+            if (file.getName().endsWith(".class")) {
+              digest.update(file.getName().getBytes(UTF_8));
+              updateDigest(digest, file);
+            }
+          }
+        }
+      } catch (URISyntaxException e) {
+        return null;
+      } catch (IOException e) {
+        return null;
+      } catch (SecurityException e) {
+        return null;
+      }
+      generatorDigest = digest.digest();
+    }
+    return generatorDigest;
+  }
+
+  private static void updateDigest(MessageDigest digest, File file) throws IOException {
+    byte[] buffer = new byte[8192];
+    InputStream in = new FileInputStream(file);
+    try {
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        digest.update(buffer, 0, read);
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      // Every java platform must support SHA-256
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String toHex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return hex.toString();
+  }
+
+  /**
+   * Writes the index file {@link #INDEX_DIRECTORY}&lt;qualified group name&gt;{@link #INDEX_SUFFIX}
+   * to the class output, so the ids of a group can be discovered at runtime with a single resource
+   * read instead of scanning the class path. The file is UTF-8 encoded and has one line per id (in
+   * the order of {@link IdOrder}) with the id (escaped like a java string literal, but
+   * without the quotes), a tab and the qualified name of the class. Lines starting with # are
+   * comments.
+   */
+  public void writeIndex(Filer filer) throws IOException {
+    FileObject file = filer.createResource(StandardLocation.CLASS_OUTPUT, "",
+        INDEX_DIRECTORY + qualifiedClassName + INDEX_SUFFIX, originatingElements());
+    Writer writer = file.openWriter();
+    try {
+      writer.write("# " + getQualifiedFactoryName() + "\n");
+      for (String id : getOrderedIds()) {
+        FactoryAnnotatedClass item = itemsMap.get(id);
+        writer.write(StringEscapeUtils.escapeJava(item.getId()) + "\t"
+            + item.getQualifiedClassName() + "\n");
+      }
+    } finally {
+      writer.close();
+    }
+  }
+
+  /**
+   * Builds the source code of the factory. Doesn't access the javac model, so it can run on any
+   * thread once {@link #resolve(Elements)} has been called.
+   *
+   * @param options the processor options
+   */
+  public JavaFile buildJavaFile(FactoryOptions options) {
+    TypeSpec.Builder factory = TypeSpec.classBuilder(factoryClassName);
+
+    // Tell the Filer which classes the factory has been generated from (for incremental builds)
+    factory.addOriginatingElement(superClassElement);
+    for (FactoryAnnotatedClass item : itemsMap.values()) {
+      factory.addOriginatingElement(item.getTypeElement());
+    }
+
+    // With a registry the compiled dispatch goes to tryCreate(), which doesn't throw. A registered
+    // Supplier can't take constructor arguments (FactoryProcessor warns about that).
+    boolean registry = options.isRegistry() && args.isEmpty();
+    MethodSpec.Builder method = MethodSpec.methodBuilder(registry ? "tryCreate" : "create")
         .addModifiers(Modifier.PUBLIC)
+        .addParameter(String.class, "id");
+    addArgParameters(method).returns(returnType);
+
+    if (registry) {
+      method.addJavadoc("Creates the instance for the given id, or returns null if the id is "
+          + "neither generated nor registered\n")
+          .beginControlFlow("if (id == null)")
+          .addStatement("return null")
+          .endControlFlow();
+      unknownId = CodeBlock.builder().add("return registered(id)").build();
+      registryEnabled = true;
+      addRegistry(factory, returnType);
+    } else {
+      // check if id is null
+      method.beginControlFlow("if (id == null)")
+          .addStatement("throw new IllegalArgumentException($S)", "id is null!")
+          .endControlFlow();
+      registryEnabled = false;
+      unknownId = CodeBlock.builder()
+          .add("throw new IllegalArgumentException($S + id)", "Unknown id = ")
+          .build();
+    }
+
+    addSingletonHolders(factory);
+    addMetrics(factory, options.getMetricsMode());
+
+    // Generate items map
+    DispatchStrategy strategy = options.getDispatchStrategy().resolve(itemsMap.size());
+    PerfectHash perfectHash = null;
+    if (strategy == DispatchStrategy.PERFECT_HASH) {
+      perfectHash = PerfectHash.create(new ArrayList<String>(itemsMap.keySet()));
+      if (perfectHash == null) {
+        // Some ids have the same hash code, let javac resolve the collisions
+        strategy = DispatchStrategy.SWITCH;
+      }
+    }
+
+    dispatchStrategy = strategy;
+    if (strategy != DispatchStrategy.IF_CHAIN) {
+      // An if chain already tests the most frequent ids first
+      for (String id : fastPathIds) {
+        method.beginControlFlow("if ($S.equals(id))", id)
+            .addStatement("return $L", newInstance(itemsMap.get(id)))
+            .endControlFlow();
+      }
+    }
+    switch (strategy) {
+      case PERFECT_HASH:
+        addPerfectHashDispatch(factory, method, returnType, perfectHash);
+        break;
+      default:
+        addDispatch(factory, method, strategy, false);
+        break;
+    }
+
+    factory.addMethod(method.build());
+
+    // The position of each id in the table of indexOf()
+    String[] indexedIds;
+    if (strategy == DispatchStrategy.PERFECT_HASH) {
+      indexedIds = perfectHash.getSlots();
+    } else {
+      indexedIds = itemsMap.keySet().toArray(new String[itemsMap.size()]);
+      addIndexOfMethod(factory, strategy);
+
+      List<CodeBlock> idElements = new ArrayList<CodeBlock>(indexedIds.length);
+      for (String id : indexedIds) {
+        idElements.add(CodeBlock.builder().add("$S", id).build());
+      }
+      addArrayConstant(factory, TypeName.get(String.class), "IDS", idElements);
+    }
+    addIdsMethods(factory, indexedIds);
+
+    if (options.isSuppliers() && args.isEmpty()) {
+      // A Supplier can't pass constructor arguments (FactoryProcessor warns about that)
+      addSupplierTable(factory, returnType, indexedIds);
+    }
+
+    addBulkMethods(factory, returnType, indexedIds);
+
+    if (!intIdItemsMap.isEmpty()) {
+      addIntIdCreateMethod(factory, returnType);
+    }
+
+    List<FactoryAnnotatedClass> pooledItems = new ArrayList<FactoryAnnotatedClass>();
+    for (FactoryAnnotatedClass item : itemsMap.values()) {
+      if (item.isPooled()) {
+        pooledItems.add(item);
+      }
+    }
+    if (!pooledItems.isEmpty()) {
+      addPool(factory, returnType, pooledItems);
+    }
+
+    TypeSpec typeSpec = factory.build();
+    if (options.isStatic()) {
+      typeSpec = toStaticFactory(typeSpec);
+    }
+
+    JavaFile.Builder javaFile = JavaFile.builder(packageName, typeSpec);
+    if (fingerprint != null) {
+      javaFile.addFileComment("$L", fileComment().substring("// ".length()));
+    }
+    return javaFile.build();
+  }
+
+  /**
+   * Turns the built factory into a final class that can't be instantiated: all methods become
+   * static and the constructor private. The public methods are declared again by the nested
+   * interface Creator, which the stateless constant CREATOR implements by calling the static
+   * methods. Code that gets the factory injected shares CREATOR instead of allocating a factory
+   * per consumer.
+   */
+  private TypeSpec toStaticFactory(TypeSpec typeSpec) {
+    ClassName creatorType =
+        ClassName.get(packageName == null ? "" : packageName, factoryClassName, "Creator");
+    TypeSpec.Builder creator = TypeSpec.interfaceBuilder("Creator")
+        .addModifiers(Modifier.PUBLIC)
+        .addJavadoc("The methods of {@link $L} for code that gets them injected, see {@link "
+            + "#CREATOR}\n", factoryClassName);
+    TypeSpec.Builder creatorImpl = TypeSpec.anonymousClassBuilder("")
+        .addSuperinterface(creatorType);
+
+    TypeSpec.Builder factory = TypeSpec.classBuilder(typeSpec.name)
+        .addModifiers(Modifier.FINAL)
+        .addFields(typeSpec.fieldSpecs)
+        .addTypes(typeSpec.typeSpecs)
+        .addMethod(MethodSpec.constructorBuilder().addModifiers(Modifier.PRIVATE).build());
+    for (Element originatingElement : typeSpec.originatingElements) {
+      factory.addOriginatingElement(originatingElement);
+    }
+
+    for (MethodSpec method : typeSpec.methodSpecs) {
+      if (method.hasModifier(Modifier.STATIC)) {
+        factory.addMethod(method);
+        continue;
+      }
+      factory.addMethod(method.toBuilder().addModifiers(Modifier.STATIC).build());
+      if (!method.hasModifier(Modifier.PUBLIC)) {
+        continue;
+      }
+
+      MethodSpec.Builder declaration = MethodSpec.methodBuilder(method.name)
+          .addModifiers(Modifier.PUBLIC, Modifier.ABSTRACT)
+          .addTypeVariables(method.typeVariables)
+          .addParameters(method.parameters)
+          .varargs(method.varargs)
+          .addExceptions(method.exceptions)
+          .returns(method.returnType);
+      if (!method.javadoc.isEmpty()) {
+        declaration.addJavadoc("$L", method.javadoc);
+      }
+      creator.addMethod(declaration.build());
+
+      // Qualified, otherwise the call would resolve to the method of the anonymous class itself
+      List<String> parameterNames = new ArrayList<String>(method.parameters.size());
+      for (ParameterSpec parameter : method.parameters) {
+        parameterNames.add(parameter.name);
+      }
+      CodeBlock call = CodeBlock.builder().add("$L.$N($L)", factoryClassName, method.name,
+          StringUtils.join(parameterNames, ", ")).build();
+      MethodSpec.Builder delegate = MethodSpec.methodBuilder(method.name)
+          .addAnnotation(Override.class)
+          .addModifiers(Modifier.PUBLIC)
+          .addTypeVariables(method.typeVariables)
+          .addParameters(method.parameters)
+          .varargs(method.varargs)
+          .addExceptions(method.exceptions)
+          .returns(method.returnType);
+      if (method.returnType.equals(TypeName.VOID)) {
+        delegate.addStatement("$L", call);
+      } else {
+        delegate.addStatement("return $L", call);
+      }
+      creatorImpl.addMethod(delegate.build());
+    }
+
+    factory.addType(creator.build());
+    factory.addField(FieldSpec.builder(creatorType, "CREATOR", Modifier.PUBLIC, Modifier.STATIC,
+        Modifier.FINAL)
+        .addJavadoc("Implements {@link Creator} without any state, so it can be shared by all "
+            + "consumers\n")
+        .initializer("$L", creatorImpl.build())
+        .build());
+    return factory.build();
+  }
+
+  /**
+   * Checks if the factory has already been written by {@link #writeJavaFile(Filer, JavaFile)} or
+   * {@link #rewritePreviousSource(Filer)}
+   */
+  public boolean isGenerated() {
+    return generated;
+  }
+
+  /**
+   * Generates a holder class for every singleton. The JVM initializes a class lazily and thread
+   * safe, so the singleton is created when it's requested for the first time without any locking.
+   */
+  private void addSingletonHolders(TypeSpec.Builder factory) {
+    singletonHolders.clear();
+    Set<String> holderNames = new HashSet<String>();
+    for (FactoryAnnotatedClass item : itemsMap.values()) {
+      if (!item.isSingleton()) {
+        continue;
+      }
+
+      String simpleName = item.getSimpleClassName();
+      String holderName = simpleName + "Holder";
+      for (int i = 2; !holderNames.add(holderName); i++) {
+        // Another class of a different package has the same simple name
+        holderName = simpleName + "Holder" + i;
+      }
+      singletonHolders.put(item.getId(), holderName);
+
+      factory.addType(TypeSpec.classBuilder(holderName)
+          .addModifiers(Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+          .addField(FieldSpec.builder(item.getClassName(), "INSTANCE", Modifier.STATIC,
+              Modifier.FINAL).initializer("new $L()", item.getQualifiedClassName()).build())
+          .build());
+    }
+  }
+
+  /**
+   * Generates the counters and the methods to read them for the given metrics mode. The
+   * counters are static, so all instances of the factory share them. Every expression returned by
+   * {@link #newInstance(FactoryAnnotatedClass)} afterwards updates the counter of its id.
+   */
+  private void addMetrics(TypeSpec.Builder factory, MetricsMode mode) {
+    metricsMode = mode;
+    metricsIndices.clear();
+    if (mode == MetricsMode.OFF) {
+      return;
+    }
+
+    List<CodeBlock> ids = new ArrayList<CodeBlock>(itemsMap.size());
+    for (String id : itemsMap.keySet()) {
+      metricsIndices.put(id, ids.size());
+      ids.add(CodeBlock.builder().add("$S", id).build());
+    }
+    addArrayConstant(factory, ClassName.get(String.class), "METRICS_IDS", ids);
+
+    ArrayTypeName countersType = ArrayTypeName.of(LONG_ADDER);
+    factory.addMethod(MethodSpec.methodBuilder("newCounters")
+        .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+        .addParameter(TypeName.INT, "size")
+        .returns(countersType)
+        .addStatement("$T counters = new $T[size]", countersType, LONG_ADDER)
+        .beginControlFlow("for (int i = 0; i < size; i++)")
+        .addStatement("counters[i] = new $T()", LONG_ADDER)
+        .endControlFlow()
+        .addStatement("return counters")
+        .build());
+    factory.addField(FieldSpec.builder(countersType, "CREATED", Modifier.PRIVATE,
+        Modifier.STATIC, Modifier.FINAL).initializer("newCounters($L)", ids.size()).build());
+
+    TypeVariableName t = TypeVariableName.get("T");
+    TypeName statsType = ParameterizedTypeName.get(Map.class, String.class, Long.class);
+    TypeName statsImplType = ParameterizedTypeName.get(LinkedHashMap.class, String.class,
+        Long.class);
+
+    if (mode == MetricsMode.COUNTERS) {
+      factory.addMethod(MethodSpec.methodBuilder("created")
+          .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+          .addTypeVariable(t)
+          .addParameter(TypeName.INT, "index")
+          .addParameter(t, "instance")
+          .returns(t)
+          .addStatement("CREATED[index].increment()")
+          .addStatement("return instance")
+          .build());
+    } else {
+      factory.addField(FieldSpec.builder(TypeName.LONG, "NOT_SAMPLED", Modifier.PRIVATE,
+          Modifier.STATIC, Modifier.FINAL).initializer("$T.MIN_VALUE", Long.class).build());
+      factory.addField(FieldSpec.builder(countersType, "SAMPLES", Modifier.PRIVATE,
+          Modifier.STATIC, Modifier.FINAL).initializer("newCounters($L)", ids.size()).build());
+      factory.addField(FieldSpec.builder(countersType, "SAMPLED_NANOS", Modifier.PRIVATE,
+          Modifier.STATIC, Modifier.FINAL).initializer("newCounters($L)", ids.size()).build());
+
+      // Java evaluates method arguments from left to right, so startSample() is called before
+      // the instance is created and created() after it
+      factory.addMethod(MethodSpec.methodBuilder("startSample")
+          .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+          .returns(TypeName.LONG)
+          .addStatement("return ($T.current().nextInt() & $L) == 0 ? $T.nanoTime() : NOT_SAMPLED",
+              THREAD_LOCAL_RANDOM, SAMPLE_MASK, System.class)
+          .build());
+      factory.addMethod(MethodSpec.methodBuilder("created")
+          .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+          .addTypeVariable(t)
+          .addParameter(TypeName.INT, "index")
+          .addParameter(TypeName.LONG, "start")
+          .addParameter(t, "instance")
+          .returns(t)
+          .addStatement("CREATED[index].increment()")
+          .beginControlFlow("if (start != NOT_SAMPLED)")
+          .addStatement("SAMPLED_NANOS[index].add($T.nanoTime() - start)", System.class)
+          .addStatement("SAMPLES[index].increment()")
+          .endControlFlow()
+          .addStatement("return instance")
+          .build());
+
+      factory.addMethod(MethodSpec.methodBuilder("latencyStats")
+          .addJavadoc("Get the average time in nanoseconds of the sampled instance creations by "
+              + "id\n")
+          .addModifiers(Modifier.PUBLIC, Modifier.STATIC)
+          .returns(statsType)
+          .addStatement("$T stats = new $T()", statsType, statsImplType)
+          .beginControlFlow("for (int i = 0; i < METRICS_IDS.length; i++)")
+          .addStatement("long samples = SAMPLES[i].sum()")
+          .addStatement("stats.put(METRICS_IDS[i], samples == 0 ? 0L : SAMPLED_NANOS[i].sum() / "
+              + "samples)")
+          .endControlFlow()
+          .addStatement("return stats")
+          .build());
+    }
+
+    factory.addMethod(MethodSpec.methodBuilder("profile")
+        .addJavadoc("Get the number of created instances by id in the format of the processor "
+            + "option $L\n", FactoryOptions.PROFILE)
+        .addModifiers(Modifier.PUBLIC, Modifier.STATIC)
+        .returns(String.class)
+        .addStatement("$T profile = new $T()", StringBuilder.class, StringBuilder.class)
+        .beginControlFlow("for (int i = 0; i < METRICS_IDS.length; i++)")
+        .addStatement("$T id = METRICS_IDS[i].replace($S, $S).replace($S, $S).replace($S, $S)"
+                + ".replace($S, $S)", String.class, "\\", "\\\\", "\t", "\\t", "\n", "\\n",
+            "\r", "\\r")
+        .addStatement("profile.append($S).append(id).append('\\t').append(CREATED[i].sum())"
+            + ".append('\\n')", qualifiedClassName + "\t")
+        .endControlFlow()
+        .addStatement("return profile.toString()")
+        .build());
+
+    factory.addMethod(MethodSpec.methodBuilder("stats")
+        .addJavadoc("Get the number of created instances by id\n")
+        .addModifiers(Modifier.PUBLIC, Modifier.STATIC)
+        .returns(statsType)
+        .addStatement("$T stats = new $T()", statsType, statsImplType)
+        .beginControlFlow("for (int i = 0; i < METRICS_IDS.length; i++)")
+        .addStatement("stats.put(METRICS_IDS[i], CREATED[i].sum())")
+        .endControlFlow()
+        .addStatement("return stats")
+        .build());
+  }
+
+  /**
+   * Adds the constructor arguments as parameters arg0 to argN to the given method
+   */
+  private MethodSpec.Builder addArgParameters(MethodSpec.Builder method) {
+    for (int i = 0; i < args.size(); i++) {
+      method.addParameter(args.get(i), "arg" + i);
+    }
+    return method;
+  }
+
+  /**
+   * Get the constructor arguments as comma separated list, like <code>arg0, arg1</code>
+   */
+  private String argNames() {
+    StringBuilder names = new StringBuilder();
+    for (int i = 0; i < args.size(); i++) {
+      if (i > 0) {
+        names.append(", ");
+      }
+      names.append("arg").append(i);
+    }
+    return names.toString();
+  }
+
+  /**
+   * Get the constructor arguments to pass them on after other arguments, like <code>, arg0,
+   * arg1</code>
+   */
+  private String passArgs() {
+    return args.isEmpty() ? "" : ", " + argNames();
+  }
+
+  private static boolean sameTypes(List<TypeName> types1, List<TypeName> types2) {
+    if (types1.size() != types2.size()) {
+      return false;
+    }
+    for (int i = 0; i < types1.size(); i++) {
+      if (!types1.get(i).toString().equals(types2.get(i).toString())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Get the expression that creates (or, for singletons, gets) the instance of the given item
+   */
+  private CodeBlock newInstance(FactoryAnnotatedClass item) {
+    CodeBlock instance;
+    String holderName = singletonHolders.get(item.getId());
+    if (holderName != null) {
+      instance = CodeBlock.builder().add("$L.INSTANCE", holderName).build();
+    } else {
+      instance = CodeBlock.builder()
+          .add("new $L($L)", item.getQualifiedClassName(), argNames())
+          .build();
+    }
+
+    if (classGroup) {
+      // The bytecode verifier loads a class to check that it is assignable to another class (but
+      // not to an interface) when it verifies the factory. The cast over Object leaves the check to
+      // a checkcast at runtime, so only the classes of requested ids are loaded.
+      instance = CodeBlock.builder().add("($T) (Object) $L", returnType, instance).build();
+    }
+
+    switch (metricsMode) {
+      case COUNTERS:
+        return CodeBlock.builder()
+            .add("created($L, $L)", metricsIndices.get(item.getId()), instance)
+            .build();
+      case LATENCY:
+        return CodeBlock.builder()
+            .add("created($L, startSample(), $L)", metricsIndices.get(item.getId()), instance)
+            .build();
+      default:
+        return instance;
+    }
+  }
+
+  /**
+   * Generates a registry for ids that are registered at runtime, for example by plugins, and a
+   * create(id) that calls tryCreate(id). The generated ids are always resolved first, so they can't
+   * be overridden. The map of the registry is never modified once published, but replaced on every
+   * change (copy on write), so looking up an id is a volatile read and a map lookup without any
+   * locking. Writers
+   * retry with compareAndSet() instead of locking.
+   */
+  private void addRegistry(TypeSpec.Builder factory, TypeName returnType) {
+    TypeName supplierType =
+        ParameterizedTypeName.get(SUPPLIER, WildcardTypeName.subtypeOf(returnType));
+    TypeName mapType = ParameterizedTypeName.get(ClassName.get(Map.class),
+        ClassName.get(String.class), supplierType);
+    TypeName hashMapType = ParameterizedTypeName.get(ClassName.get(HashMap.class),
+        ClassName.get(String.class), supplierType);
+    TypeName referenceType = ParameterizedTypeName.get(ATOMIC_REFERENCE, mapType);
+
+    factory.addField(FieldSpec.builder(referenceType, "REGISTRY", Modifier.PRIVATE,
+        Modifier.STATIC, Modifier.FINAL)
+        .initializer("new $T($T.<$T, $T>emptyMap())", referenceType, Collections.class,
+            String.class, supplierType)
+        .build());
+
+    factory.addMethod(MethodSpec.methodBuilder("create")
+        .addModifiers(Modifier.PUBLIC)
+        .addParameter(String.class, "id")
+        .returns(returnType)
+        .beginControlFlow("if (id == null)")
+        .addStatement("throw new IllegalArgumentException($S)", "id is null!")
+        .endControlFlow()
+        .addStatement("$T instance = tryCreate(id)", returnType)
+        .beginControlFlow("if (instance == null)")
+        .addStatement("throw new IllegalArgumentException($S + id)", "Unknown id = ")
+        .endControlFlow()
+        .addStatement("return instance")
+        .build());
+
+    factory.addMethod(MethodSpec.methodBuilder("registered")
+        .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+        .addParameter(String.class, "id")
+        .returns(returnType)
+        .addStatement("$T supplier = REGISTRY.get().get(id)", supplierType)
+        .addStatement("return supplier != null ? supplier.get() : null")
+        .build());
+
+    factory.addMethod(MethodSpec.methodBuilder("register")
+        .addJavadoc("Registers an id that hasn't been generated. Replaces a previous registration "
+            + "of the id. The supplier must not return null.\n")
+        .addModifiers(Modifier.PUBLIC, Modifier.STATIC)
+        .addParameter(String.class, "id")
+        .addParameter(supplierType, "supplier")
+        .beginControlFlow("if (id == null || supplier == null)")
+        .addStatement("throw new IllegalArgumentException($S)", "id or supplier is null!")
+        .endControlFlow()
+        .beginControlFlow("if (indexOf(id) >= 0)")
+        .addStatement("throw new IllegalArgumentException($S + id)",
+            "Can't register generated id = ")
+        .endControlFlow()
+        .addStatement("$T current", mapType)
+        .addStatement("$T copy", hashMapType)
+        .beginControlFlow("do")
+        .addStatement("current = REGISTRY.get()")
+        .addStatement("copy = new $T(current)", hashMapType)
+        .addStatement("copy.put(id, supplier)")
+        .endControlFlow("while (!REGISTRY.compareAndSet(current, copy))")
+        .build());
+
+    factory.addMethod(MethodSpec.methodBuilder("unregister")
+        .addJavadoc("Removes a registered id. Returns false if the id hasn't been registered.\n")
+        .addModifiers(Modifier.PUBLIC, Modifier.STATIC)
+        .addParameter(String.class, "id")
+        .returns(TypeName.BOOLEAN)
+        .addStatement("$T current", mapType)
+        .addStatement("$T copy", hashMapType)
+        .beginControlFlow("do")
+        .addStatement("current = REGISTRY.get()")
+        .beginControlFlow("if (!current.containsKey(id))")
+        .addStatement("return false")
+        .endControlFlow()
+        .addStatement("copy = new $T(current)", hashMapType)
+        .addStatement("copy.remove(id)")
+        .endControlFlow("while (!REGISTRY.compareAndSet(current, copy))")
+        .addStatement("return true")
+        .build());
+  }
+
+  /**
+   * Generates indexOf(id) that returns the position of the id in {@link #itemsMap} or -1. The
+   * perfect hash strategy generates its own indexOf().
+   */
+  private void addIndexOfMethod(TypeSpec.Builder factory, DispatchStrategy strategy) {
+    MethodSpec.Builder method = MethodSpec.methodBuilder("indexOf")
+        .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
         .addParameter(String.class, "id")
-        .returns(TypeName.get(superClassName.asType()));
+        .returns(TypeName.INT);
+    addDispatch(factory, method, strategy, true);
+    factory.addMethod(method.build());
+  }
+
+  /**
+   * Generates ids() and contains(id). ids() returns the ids in the order of {@link IdOrder}. That's
+   * the order of the IDS array constant, unless indexOf() uses another one (the slots of a perfect
+   * hash or the order of a profile). Then a second array constant is generated.
+   *
+   * @param indexedIds the ids ordered by the value indexOf() returns for them
+   */
+  private void addIdsMethods(TypeSpec.Builder factory, String[] indexedIds) {
+    List<String> ids = getOrderedIds();
+    String idArray = "IDS";
+    if (!Arrays.asList(indexedIds).equals(ids)) {
+      List<CodeBlock> idElements = new ArrayList<CodeBlock>(ids.size());
+      for (String id : ids) {
+        idElements.add(CodeBlock.builder().add("$S", id).build());
+      }
+      idArray = "ORDERED";
+      addArrayConstant(factory, TypeName.get(String.class), idArray, idElements);
+    }
+
+    TypeName idList = ParameterizedTypeName.get(List.class, String.class);
+    factory.addField(FieldSpec.builder(idList, "ID_LIST", Modifier.PRIVATE, Modifier.STATIC,
+        Modifier.FINAL)
+        .initializer("$T.unmodifiableList($T.asList($N))", Collections.class, Arrays.class,
+            idArray)
+        .build());
+
+    String orderDescription = order == IdOrder.SORTED ? "sorted"
+        : "in the order in which the compiler has reported their classes";
+    factory.addMethod(MethodSpec.methodBuilder("ids")
+        .addJavadoc("Get all ids this factory can create, $L (see processor option $L)\n",
+            orderDescription, FactoryOptions.ORDER)
+        .addModifiers(Modifier.PUBLIC, Modifier.STATIC)
+        .returns(idList)
+        .addStatement("return ID_LIST")
+        .build());
+
+    factory.addMethod(MethodSpec.methodBuilder("contains")
+        .addJavadoc("Checks if this factory can create the given id\n")
+        .addModifiers(Modifier.PUBLIC, Modifier.STATIC)
+        .addParameter(String.class, "id")
+        .returns(TypeName.BOOLEAN)
+        .addStatement("return id != null && indexOf(id) >= 0")
+        .build());
+  }
+
+  /**
+   * Generates an if chain or a switch that returns the instance (or the index, if indexOf is true)
+   * for an id. With an if chain the last id needs as many equals() calls as there are ids. A switch
+   * on the id is compiled by javac to a lookup by hash code followed by a single equals() call, so
+   * the cost doesn't grow with the position of an id in the order of {@link IdOrder}. Big groups are
+   * split up into methods with at most about {@link #CHUNK_SIZE} ids, because the JVM limits the
+   * bytecode of a single method to 64 KB. An if chain tries the chunks in order, a switch picks the
+   * chunk by the hash code of the id.
+   */
+  private void addDispatch(TypeSpec.Builder factory, MethodSpec.Builder method,
+      DispatchStrategy strategy, boolean indexOf) {
+    List<String> ids = new ArrayList<String>(itemsMap.keySet());
+    CodeBlock miss = indexOf ? CodeBlock.builder().add("return -1").build() : unknownId;
 
-    // check if id is null
-    method.beginControlFlow("if (id == null)")
+    if (ids.size() <= CHUNK_SIZE) {
+      List<Integer> indices = new ArrayList<Integer>(ids.size());
+      for (int i = 0; i < ids.size(); i++) {
+        indices.add(i);
+      }
+      addDispatchCases(method, ids, indices, strategy, indexOf, miss);
+      return;
+    }
+
+    // A single method would exceed the 64 KB bytecode limit of the JVM, so split it up
+    int chunkCount = (ids.size() + CHUNK_SIZE - 1) / CHUNK_SIZE;
+    List<List<Integer>> chunks = new ArrayList<List<Integer>>(chunkCount);
+    for (int chunk = 0; chunk < chunkCount; chunk++) {
+      chunks.add(new ArrayList<Integer>());
+    }
+    for (int i = 0; i < ids.size(); i++) {
+      int chunk = strategy == DispatchStrategy.SWITCH
+          ? (ids.get(i).hashCode() & 0x7fffffff) % chunkCount
+          : i >> CHUNK_SHIFT;
+      chunks.get(chunk).add(i);
+    }
+
+    String name = indexOf ? "indexOf" : "create";
+    TypeName resultType = indexOf ? TypeName.INT : returnType;
+    String found = indexOf ? "result >= 0" : "result != null";
+    String passedArgs = indexOf ? "" : passArgs();
+    CodeBlock notFound = CodeBlock.builder().add(indexOf ? "return -1" : "return null").build();
+
+    for (int chunk = 0; chunk < chunkCount; chunk++) {
+      MethodSpec.Builder chunkMethod = MethodSpec.methodBuilder(name + chunk)
+          .addModifiers(Modifier.PRIVATE)
+          .addParameter(String.class, "id")
+          .returns(resultType);
+      if (indexOf) {
+        chunkMethod.addModifiers(Modifier.STATIC);
+      } else {
+        addArgParameters(chunkMethod);
+      }
+      addDispatchCases(chunkMethod, ids, chunks.get(chunk), strategy, indexOf, notFound);
+      factory.addMethod(chunkMethod.build());
+    }
+
+    if (strategy == DispatchStrategy.SWITCH) {
+      method.addStatement("$T result", resultType)
+          .beginControlFlow("switch ((id.hashCode() & 0x7fffffff) % $L)", chunkCount);
+      for (int chunk = 0; chunk < chunkCount; chunk++) {
+        if (chunk < chunkCount - 1) {
+          method.addCode("case $L:\n$>", chunk);
+        } else {
+          method.addCode("default:\n$>");
+        }
+        method.addStatement("result = $N(id$L)", name + chunk, passedArgs)
+            .addStatement("break")
+            .addCode("$<");
+      }
+      method.endControlFlow()
+          .beginControlFlow("if ($L)", found)
+          .addStatement("return result")
+          .endControlFlow();
+    } else {
+      for (int chunk = 0; chunk < chunkCount; chunk++) {
+        if (chunk == 0) {
+          method.addStatement("$T result = $N(id$L)", resultType, name + chunk, passedArgs);
+        } else {
+          method.addStatement("result = $N(id$L)", name + chunk, passedArgs);
+        }
+        method.beginControlFlow("if ($L)", found)
+            .addStatement("return result")
+            .endControlFlow();
+      }
+    }
+    method.addStatement("$L", miss);
+  }
+
+  /**
+   * Generates the if blocks or switch cases for the ids at the given indices, followed by the
+   * statement for an unknown id
+   */
+  private void addDispatchCases(MethodSpec.Builder method, List<String> ids,
+      List<Integer> indices, DispatchStrategy strategy, boolean indexOf, CodeBlock miss) {
+    if (strategy == DispatchStrategy.SWITCH) {
+      method.beginControlFlow("switch (id)");
+      for (int index : indices) {
+        method.addCode("case $S:\n$>", ids.get(index))
+            .addStatement("return $L", dispatchResult(ids.get(index), index, indexOf))
+            .addCode("$<");
+      }
+      method.addCode("default:\n$>")
+          .addStatement("$L", miss)
+          .addCode("$<")
+          .endControlFlow();
+    } else {
+      for (int index : indices) {
+        method.beginControlFlow("if ($S.equals(id))", ids.get(index))
+            .addStatement("return $L", dispatchResult(ids.get(index), index, indexOf))
+            .endControlFlow();
+      }
+      method.addStatement("$L", miss);
+    }
+  }
+
+  private CodeBlock dispatchResult(String id, int index, boolean indexOf) {
+    if (indexOf) {
+      return CodeBlock.builder().add("$L", index).build();
+    }
+    return newInstance(itemsMap.get(id));
+  }
+
+  /**
+   * Generates createAll(ids) and createN(id, n, dest). Both resolve an id only once for a run of
+   * equal ids and then fill the array in a loop that creates instances of a single class.
+   *
+   * @param indexedIds the ids ordered by the value indexOf() returns for them
+   */
+  private void addBulkMethods(TypeSpec.Builder factory, TypeName returnType,
+      String[] indexedIds) {
+    ArrayTypeName arrayType = ArrayTypeName.of(returnType);
+
+    MethodSpec.Builder fill = MethodSpec.methodBuilder("fill")
+        .addModifiers(Modifier.PRIVATE)
+        .addParameter(TypeName.INT, "index")
+        .addParameter(arrayType, "dest")
+        .addParameter(TypeName.INT, "from")
+        .addParameter(TypeName.INT, "to");
+    addArgParameters(fill);
+    if (indexedIds.length <= CHUNK_SIZE) {
+      addFillCases(fill, indexedIds, 0, indexedIds.length);
+    } else {
+      // A single method would exceed the 64 KB bytecode limit of the JVM, so split it up
+      fill.beginControlFlow("switch (index >> $L)", CHUNK_SHIFT);
+      for (int chunk = 0; chunk * CHUNK_SIZE < indexedIds.length; chunk++) {
+        String chunkMethodName = "fill" + chunk;
+        fill.addCode("case $L:\n$>", chunk)
+            .addStatement("$N(index, dest, from, to$L)", chunkMethodName, passArgs())
+            .addStatement("return")
+            .addCode("$<");
+
+        MethodSpec.Builder chunkMethod = MethodSpec.methodBuilder(chunkMethodName)
+            .addModifiers(Modifier.PRIVATE)
+            .addParameter(TypeName.INT, "index")
+            .addParameter(arrayType, "dest")
+            .addParameter(TypeName.INT, "from")
+            .addParameter(TypeName.INT, "to");
+        addArgParameters(chunkMethod);
+        addFillCases(chunkMethod, indexedIds, chunk * CHUNK_SIZE,
+            Math.min(indexedIds.length, (chunk + 1) * CHUNK_SIZE));
+        factory.addMethod(chunkMethod.build());
+      }
+      fill.addCode("default:\n$>")
+          .addStatement("throw new IllegalArgumentException($S + index)", "Unknown index = ")
+          .addCode("$<")
+          .endControlFlow();
+    }
+    factory.addMethod(fill.build());
+
+    factory.addMethod(addArgParameters(MethodSpec.methodBuilder("createAll")
+        .addJavadoc("Creates the instances for the given ids. Equal ids in a row are resolved only "
+            + "once.\n")
+        .addModifiers(Modifier.PUBLIC)
+        .addParameter(String[].class, "ids"))
+        .returns(arrayType)
+        .beginControlFlow("if (ids == null)")
+        .addStatement("throw new IllegalArgumentException($S)", "ids is null!")
+        .endControlFlow()
+        .addStatement("$T result = new $T[ids.length]", arrayType, returnType)
+        .addStatement("int from = 0")
+        .beginControlFlow("while (from < ids.length)")
+        .addStatement("String id = ids[from]")
+        .beginControlFlow("if (id == null)")
+        .addStatement("throw new IllegalArgumentException($S)", "id is null!")
+        .endControlFlow()
+        .addStatement("int to = from + 1")
+        .beginControlFlow("while (to < ids.length && id.equals(ids[to]))")
+        .addStatement("to++")
+        .endControlFlow()
+        .addCode(fillRange(returnType, "result", "from", "to"))
+        .addStatement("from = to")
+        .endControlFlow()
+        .addStatement("return result")
+        .build());
+
+    TypeName idListType = ParameterizedTypeName.get(List.class, String.class);
+    factory.addMethod(addArgParameters(MethodSpec.methodBuilder("createAll")
+        .addJavadoc("Creates the instances for the given ids. Equal ids in a row are resolved only "
+            + "once. The returned list has a fixed size.\n")
+        .addModifiers(Modifier.PUBLIC)
+        .addParameter(idListType, "ids"))
+        .returns(ParameterizedTypeName.get(ClassName.get(List.class), returnType))
+        .beginControlFlow("if (ids == null)")
+        .addStatement("throw new IllegalArgumentException($S)", "ids is null!")
+        .endControlFlow()
+        .addStatement("return $T.asList(createAll(ids.toArray(new String[ids.size()])$L))",
+            Arrays.class, passArgs())
+        .build());
+
+    factory.addMethod(addArgParameters(MethodSpec.methodBuilder("createN")
+        .addJavadoc("Creates n instances for the given id and stores them in dest[0] to "
+            + "dest[n - 1]\n")
+        .addModifiers(Modifier.PUBLIC)
+        .addParameter(String.class, "id")
+        .addParameter(TypeName.INT, "n")
+        .addParameter(arrayType, "dest"))
+        .beginControlFlow("if (id == null)")
         .addStatement("throw new IllegalArgumentException($S)", "id is null!")
+        .endControlFlow()
+        .beginControlFlow("if (dest == null)")
+        .addStatement("throw new IllegalArgumentException($S)", "dest is null!")
+        .endControlFlow()
+        .beginControlFlow("if (n < 0 || n > dest.length)")
+        .addStatement("throw new IllegalArgumentException($S + n + $S + dest.length)", "n = ",
+            " is out of range for an array of length ")
+        .endControlFlow()
+        .addCode(fillRange(returnType, "dest", "0", "n"))
+        .build());
+  }
+
+  /**
+   * Generates the code that resolves id and creates its instances in dest[from] to dest[to - 1].
+   * With a registry the supplier of a registered id creates them, if the id hasn't been generated.
+   */
+  private CodeBlock fillRange(TypeName returnType, String dest, String from, String to) {
+    CodeBlock.Builder code = CodeBlock.builder()
+        .addStatement("int index = indexOf(id)");
+    if (!registryEnabled) {
+      return code.beginControlFlow("if (index < 0)")
+          .addStatement("throw new IllegalArgumentException($S + id)", "Unknown id = ")
+          .endControlFlow()
+          .addStatement("fill(index, $L, $L, $L$L)", dest, from, to, passArgs())
+          .build();
+    }
+
+    TypeName supplierType =
+        ParameterizedTypeName.get(SUPPLIER, WildcardTypeName.subtypeOf(returnType));
+    return code.beginControlFlow("if (index >= 0)")
+        .addStatement("fill(index, $L, $L, $L$L)", dest, from, to, passArgs())
+        .nextControlFlow("else")
+        .addStatement("$T supplier = REGISTRY.get().get(id)", supplierType)
+        .beginControlFlow("if (supplier == null)")
+        .addStatement("throw new IllegalArgumentException($S + id)", "Unknown id = ")
+        .endControlFlow()
+        .beginControlFlow("for (int i = $L; i < $L; i++)", from, to)
+        .addStatement("$L[i] = supplier.get()", dest)
+        .endControlFlow()
+        .endControlFlow()
+        .build();
+  }
+
+  /**
+   * Generates <code>case index: for (...) dest[i] = new Item();</code> for the ids in
+   * indexedIds[from] to indexedIds[to - 1]
+   */
+  private void addFillCases(MethodSpec.Builder method, String[] indexedIds, int from, int to) {
+    method.beginControlFlow("switch (index)");
+    for (int i = from; i < to; i++) {
+      FactoryAnnotatedClass item = itemsMap.get(indexedIds[i]);
+      method.addCode("case $L:\n$>", i)
+          .beginControlFlow("for (int i = from; i < to; i++)")
+          .addStatement("dest[i] = $L", newInstance(item))
+          .endControlFlow()
+          .addStatement("return")
+          .addCode("$<");
+    }
+    method.addCode("default:\n$>")
+        .addStatement("throw new IllegalArgumentException($S + index)", "Unknown index = ")
+        .addCode("$<")
         .endControlFlow();
+  }
 
-    // Generate items map
+  /**
+   * Generates a table with one Supplier per id and supplierFor(id). Callers can resolve the id once
+   * and call the supplier in a loop without dispatching the id again.
+   *
+   * @param indexedIds the ids ordered by the value indexOf() returns for them
+   */
+  private void addSupplierTable(TypeSpec.Builder factory, TypeName returnType,
+      String[] indexedIds) {
 
-    for (FactoryAnnotatedClass item : itemsMap.values()) {
-      method.beginControlFlow("if ($S.equals(id))", item.getId())
-          .addStatement("return new $L()", item.getTypeElement().getQualifiedName().toString())
+    // Creating a Supplier links (and loads) its class, so the table is filled lazily
+    TypeName anySupplier =
+        ParameterizedTypeName.get(SUPPLIER, WildcardTypeName.subtypeOf(Object.class));
+    factory.addField(FieldSpec.builder(ArrayTypeName.of(anySupplier), "SUPPLIERS",
+        Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+        .initializer("new $T[$L]", anySupplier, indexedIds.length)
+        .build());
+
+    MethodSpec.Builder newSupplier = MethodSpec.methodBuilder("newSupplier")
+        .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+        .addParameter(TypeName.INT, "index")
+        .returns(anySupplier);
+    if (indexedIds.length <= CHUNK_SIZE) {
+      addSupplierCases(newSupplier, indexedIds, 0, indexedIds.length);
+    } else {
+      // A single method would exceed the 64 KB bytecode limit of the JVM, so split it up
+      newSupplier.beginControlFlow("switch (index >> $L)", CHUNK_SHIFT);
+      for (int chunk = 0; chunk * CHUNK_SIZE < indexedIds.length; chunk++) {
+        String chunkMethodName = "newSupplier" + chunk;
+        newSupplier.addCode("case $L:\n$>", chunk)
+            .addStatement("return $N(index)", chunkMethodName)
+            .addCode("$<");
+
+        MethodSpec.Builder chunkMethod = MethodSpec.methodBuilder(chunkMethodName)
+            .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+            .addParameter(TypeName.INT, "index")
+            .returns(anySupplier);
+        addSupplierCases(chunkMethod, indexedIds, chunk * CHUNK_SIZE,
+            Math.min(indexedIds.length, (chunk + 1) * CHUNK_SIZE));
+        factory.addMethod(chunkMethod.build());
+      }
+      newSupplier.addCode("default:\n$>")
+          .addStatement("throw new IllegalArgumentException($S + index)", "Unknown index = ")
+          .addCode("$<")
+          .endControlFlow();
+    }
+    factory.addMethod(newSupplier.build());
+
+    TypeName supplierType =
+        ParameterizedTypeName.get(SUPPLIER, WildcardTypeName.subtypeOf(returnType));
+    factory.addMethod(MethodSpec.methodBuilder("supplierFor")
+        .addAnnotation(AnnotationSpec.builder(SuppressWarnings.class)
+            .addMember("value", "$S", "unchecked")
+            .build())
+        .addModifiers(Modifier.PUBLIC)
+        .addParameter(String.class, "id")
+        .returns(supplierType)
+        .beginControlFlow("if (id == null)")
+        .addStatement("throw new IllegalArgumentException($S)", "id is null!")
+        .endControlFlow()
+        .addStatement("int index = indexOf(id)")
+        .beginControlFlow("if (index < 0)")
+        .addCode(supplierForUnknownId(returnType))
+        .endControlFlow()
+        .addStatement("$T supplier = SUPPLIERS[index]", anySupplier)
+        .beginControlFlow("if (supplier == null)")
+        .addCode("// Racy, but a Supplier is stateless, so the worst case is creating it twice\n")
+        .addStatement("supplier = newSupplier(index)")
+        .addStatement("SUPPLIERS[index] = supplier")
+        .endControlFlow()
+        .addStatement("return ($T) supplier", supplierType)
+        .build());
+  }
+
+  private CodeBlock supplierForUnknownId(TypeName returnType) {
+    CodeBlock.Builder code = CodeBlock.builder();
+    if (registryEnabled) {
+      TypeName supplierType =
+          ParameterizedTypeName.get(SUPPLIER, WildcardTypeName.subtypeOf(returnType));
+      code.addStatement("$T registered = REGISTRY.get().get(id)", supplierType)
+          .beginControlFlow("if (registered != null)")
+          .addStatement("return registered")
+          .endControlFlow();
+    }
+    return code.addStatement("throw new IllegalArgumentException($S + id)", "Unknown id = ")
+        .build();
+  }
+
+  /**
+   * Generates <code>case index: return Item::new;</code> for the ids in indexedIds[from] to
+   * indexedIds[to - 1]
+   */
+  private void addSupplierCases(MethodSpec.Builder method, String[] indexedIds, int from,
+      int to) {
+    method.beginControlFlow("switch (index)");
+    for (int i = from; i < to; i++) {
+      FactoryAnnotatedClass item = itemsMap.get(indexedIds[i]);
+      method.addCode("case $L:\n$>", i);
+      if (item.isSingleton() || metricsMode != MetricsMode.OFF) {
+        method.addStatement("return () -> $L", newInstance(item));
+      } else {
+        method.addStatement("return $L::new", item.getQualifiedClassName());
+      }
+      method.addCode("$<");
+    }
+    method.addCode("default:\n$>")
+        .addStatement("throw new IllegalArgumentException($S + index)", "Unknown index = ")
+        .addCode("$<")
+        .endControlFlow();
+  }
+
+  /**
+   * Generates a lookup table with a perfect hash. An id is resolved in indexOf() with one hash, one
+   * array index and one equals(). create() then instantiates the class with a switch on the index,
+   * which javac compiles to a jump table.
+   */
+  private void addPerfectHashDispatch(TypeSpec.Builder factory, MethodSpec.Builder method,
+      TypeName returnType, PerfectHash perfectHash) {
+
+    String[] slots = perfectHash.getSlots();
+    int[] seeds = perfectHash.getSeeds();
+
+    List<CodeBlock> idElements = new ArrayList<CodeBlock>(slots.length);
+    for (String id : slots) {
+      idElements.add(CodeBlock.builder().add("$S", id).build());
+    }
+    addArrayConstant(factory, TypeName.get(String.class), "IDS", idElements);
+
+    List<CodeBlock> seedElements = new ArrayList<CodeBlock>(seeds.length);
+    for (int seed : seeds) {
+      seedElements.add(CodeBlock.builder().add("$L", seed).build());
+    }
+    addArrayConstant(factory, TypeName.INT, "SEEDS", seedElements);
+
+    // Must be kept in sync with PerfectHash
+    factory.addMethod(MethodSpec.methodBuilder("indexOf")
+        .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+        .addParameter(String.class, "id")
+        .returns(TypeName.INT)
+        .addStatement("int h = id.hashCode()")
+        .addStatement("int seed = SEEDS[reduce(mix(h), SEEDS.length)]")
+        .addStatement("int index = reduce(mix(h ^ seed), IDS.length)")
+        .addStatement("return IDS[index].equals(id) ? index : -1")
+        .build());
+
+    factory.addMethod(MethodSpec.methodBuilder("mix")
+        .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+        .addParameter(TypeName.INT, "h")
+        .returns(TypeName.INT)
+        .addStatement("h ^= h >>> 16")
+        .addStatement("h *= 0x85ebca6b")
+        .addStatement("h ^= h >>> 13")
+        .addStatement("h *= 0xc2b2ae35")
+        .addStatement("h ^= h >>> 16")
+        .addStatement("return h")
+        .build());
+
+    factory.addMethod(MethodSpec.methodBuilder("reduce")
+        .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+        .addParameter(TypeName.INT, "hash")
+        .addParameter(TypeName.INT, "size")
+        .returns(TypeName.INT)
+        .addStatement("return (int) (((hash & 0xffffffffL) * size) >>> 32)")
+        .build());
+
+    if (slots.length <= CHUNK_SIZE) {
+      method.beginControlFlow("switch (indexOf(id))");
+      addCreateCases(method, slots, 0, slots.length);
+      method.addCode("default:\n$>")
+          .addStatement("$L", unknownId)
+          .addCode("$<")
           .endControlFlow();
+      return;
     }
 
+    // A single method would exceed the 64 KB bytecode limit of the JVM, so split it up
+    method.addStatement("int index = indexOf(id)");
+    method.beginControlFlow("switch (index >> $L)", CHUNK_SHIFT);
+    for (int chunk = 0; chunk * CHUNK_SIZE < slots.length; chunk++) {
+      String chunkMethodName = "create" + chunk;
+      method.addCode("case $L:\n$>", chunk)
+          .addStatement("return $N(index$L)", chunkMethodName, passArgs())
+          .addCode("$<");
+
+      MethodSpec.Builder chunkMethod = MethodSpec.methodBuilder(chunkMethodName)
+          .addModifiers(Modifier.PRIVATE)
+          .addParameter(TypeName.INT, "index");
+      addArgParameters(chunkMethod)
+          .returns(returnType)
+          .beginControlFlow("switch (index)");
+      addCreateCases(chunkMethod, slots, chunk * CHUNK_SIZE,
+          Math.min(slots.length, (chunk + 1) * CHUNK_SIZE));
+      chunkMethod.addCode("default:\n$>")
+          .addStatement("throw new IllegalArgumentException($S + index)", "Unknown index = ")
+          .addCode("$<")
+          .endControlFlow();
+      factory.addMethod(chunkMethod.build());
+    }
+    method.addCode("default:\n$>")
+        .addStatement("$L", unknownId)
+        .addCode("$<")
+        .endControlFlow();
+  }
+
+  /**
+   * Generates acquire(id) and release(instance) with one pool per pooled class. The pools are
+   * thread local, so threads never contend for them and no synchronization is needed.
+   */
+  private void addPool(TypeSpec.Builder factory, TypeName returnType,
+      List<FactoryAnnotatedClass> pooledItems) {
+
+    ClassName poolable = ClassName.get(Poolable.class);
+    ClassName pool = ClassName.get("", "Pool");
+    ArrayTypeName pools = ArrayTypeName.of(pool);
+
+    factory.addType(TypeSpec.classBuilder("Pool")
+        .addModifiers(Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+        .addField(ArrayTypeName.of(poolable), "items", Modifier.PRIVATE, Modifier.FINAL)
+        .addField(TypeName.INT, "size", Modifier.PRIVATE)
+        .addMethod(MethodSpec.constructorBuilder()
+            .addParameter(TypeName.INT, "capacity")
+            .addStatement("items = new $T[capacity]", poolable)
+            .build())
+        .addMethod(MethodSpec.methodBuilder("poll")
+            .returns(poolable)
+            .beginControlFlow("if (size == 0)")
+            .addStatement("return null")
+            .endControlFlow()
+            .addStatement("$T item = items[--size]", poolable)
+            .addStatement("items[size] = null")
+            .addStatement("return item")
+            .build())
+        .addMethod(MethodSpec.methodBuilder("offer")
+            .addParameter(poolable, "item")
+            .beginControlFlow("if (size < items.length)")
+            .addStatement("item.reset()")
+            .addStatement("items[size++] = item")
+            .endControlFlow()
+            .build())
+        .build());
+
+    CodeBlock.Builder newPools = CodeBlock.builder().add("return new $T {\n$>$>", pools);
+    for (int i = 0; i < pooledItems.size(); i++) {
+      newPools.add("new $T($L)", pool, pooledItems.get(i).getPoolSize())
+          .add(i < pooledItems.size() - 1 ? ",\n" : "\n");
+    }
+    newPools.add("$<$<};\n");
+
+    TypeName threadLocal = ParameterizedTypeName.get(ClassName.get(ThreadLocal.class), pools);
+    factory.addField(FieldSpec.builder(threadLocal, "POOLS", Modifier.PRIVATE, Modifier.STATIC,
+        Modifier.FINAL)
+        .initializer("$L", TypeSpec.anonymousClassBuilder("")
+            .superclass(threadLocal)
+            .addMethod(MethodSpec.methodBuilder("initialValue")
+                .addAnnotation(Override.class)
+                .addModifiers(Modifier.PROTECTED)
+                .returns(pools)
+                .addCode(newPools.build())
+                .build())
+            .build())
+        .build());
+
+    // acquire() falls back to create() for ids that are not pooled, which also knows registered ids
+    MethodSpec.Builder acquire = MethodSpec.methodBuilder("acquire")
+        .addModifiers(Modifier.PUBLIC)
+        .addParameter(String.class, "id")
+        .returns(returnType)
+        .beginControlFlow("if (id == null)")
+        .addStatement("throw new IllegalArgumentException($S)", "id is null!")
+        .endControlFlow()
+        .beginControlFlow("switch (id)");
+    for (int i = 0; i < pooledItems.size(); i++) {
+      FactoryAnnotatedClass item = pooledItems.get(i);
+      // Casts to the group type, not to the class: a conditional expression or a cast to the class
+      // would make the bytecode verifier load the class of every pooled id (see newInstance())
+      acquire.addCode("case $S: {\n$>", item.getId())
+          .addStatement("$T item = POOLS.get()[$L].poll()", poolable, i)
+          .beginControlFlow("if (item != null)")
+          .addStatement("return ($T) item", returnType)
+          .endControlFlow()
+          .addStatement("return $L", newInstance(item))
+          .addCode("$<}\n");
+    }
+    acquire.addCode("default:\n$>").addStatement("return create(id)").addCode("$<");
+    factory.addMethod(acquire.endControlFlow().build());
+
+    // release() drops instances of classes that are not pooled
+    MethodSpec.Builder release = MethodSpec.methodBuilder("release")
+        .addModifiers(Modifier.PUBLIC)
+        .addParameter(returnType, "instance")
+        .beginControlFlow("if (instance == null)")
+        .addStatement("throw new IllegalArgumentException($S)", "instance is null!")
+        .endControlFlow()
+        .addStatement("Class<?> type = instance.getClass()");
+    for (int i = 0; i < pooledItems.size(); i++) {
+      release.beginControlFlow("if (type == $L.class)",
+          pooledItems.get(i).getQualifiedClassName())
+          .addStatement("POOLS.get()[$L].offer(($T) instance)", i, poolable)
+          .addStatement("return")
+          .endControlFlow();
+    }
+    factory.addMethod(release.build());
+  }
+
+  /**
+   * Generates create(int) for all classes with a {@link Factory#intId()}. It's a switch on the
+   * numeric id, which javac compiles to a jump table (tableswitch) if the ids are dense.
+   */
+  private void addIntIdCreateMethod(TypeSpec.Builder factory, TypeName returnType) {
+
+    MethodSpec.Builder method = MethodSpec.methodBuilder("create")
+        .addModifiers(Modifier.PUBLIC)
+        .addParameter(TypeName.INT, "id");
+    addArgParameters(method).returns(returnType);
+
+    List<Integer> intIds = new ArrayList<Integer>(intIdItemsMap.keySet());
+    if (intIds.size() <= CHUNK_SIZE) {
+      addIntIdSwitch(method, intIds);
+      factory.addMethod(method.build());
+      return;
+    }
+
+    // A single method would exceed the 64 KB bytecode limit of the JVM, so split it up by ranges
+    for (int chunk = 0; chunk * CHUNK_SIZE < intIds.size(); chunk++) {
+      String chunkMethodName = "createInt" + chunk;
+      List<Integer> chunkIds =
+          intIds.subList(chunk * CHUNK_SIZE, Math.min(intIds.size(), (chunk + 1) * CHUNK_SIZE));
+
+      method.beginControlFlow("if (id <= $L)", chunkIds.get(chunkIds.size() - 1))
+          .addStatement("return $N(id$L)", chunkMethodName, passArgs())
+          .endControlFlow();
+
+      MethodSpec.Builder chunkMethod = MethodSpec.methodBuilder(chunkMethodName)
+          .addModifiers(Modifier.PRIVATE)
+          .addParameter(TypeName.INT, "id");
+      addArgParameters(chunkMethod).returns(returnType);
+      addIntIdSwitch(chunkMethod, chunkIds);
+      factory.addMethod(chunkMethod.build());
+    }
     method.addStatement("throw new IllegalArgumentException($S + id)", "Unknown id = ");
 
-    TypeSpec typeSpec = TypeSpec.classBuilder(factoryClassName).addMethod(method.build()).build();
+    factory.addMethod(method.build());
+  }
+
+  /**
+   * Generates <code>switch (id) { case intId: return new Item(); }</code> for the given numeric ids
+   */
+  private void addIntIdSwitch(MethodSpec.Builder method, List<Integer> intIds) {
+    method.beginControlFlow("switch (id)");
+    for (Integer intId : intIds) {
+      FactoryAnnotatedClass item = intIdItemsMap.get(intId);
+      method.addCode("case $L:\n$>", intId)
+          .addStatement("return $L", newInstance(item))
+          .addCode("$<");
+    }
+    method.addCode("default:\n$>")
+        .addStatement("throw new IllegalArgumentException($S + id)", "Unknown id = ")
+        .addCode("$<")
+        .endControlFlow();
+  }
+
+  /**
+   * Generates <code>case index: return new Item();</code> for the ids in slots[from] to
+   * slots[to - 1]
+   */
+  private void addCreateCases(MethodSpec.Builder method, String[] slots, int from, int to) {
+    for (int i = from; i < to; i++) {
+      FactoryAnnotatedClass item = itemsMap.get(slots[i]);
+      method.addCode("case $L:\n$>", i)
+          .addStatement("return $L", newInstance(item))
+          .addCode("$<");
+    }
+  }
+
+  /**
+   * Adds a <code>private static final</code> array to the factory. Big arrays are filled by
+   * multiple methods, because the JVM limits the bytecode of a single method to 64 KB.
+   */
+  private static void addArrayConstant(TypeSpec.Builder factory, TypeName componentType,
+      String name, List<CodeBlock> elements) {
+
+    ArrayTypeName arrayType = ArrayTypeName.of(componentType);
+    FieldSpec.Builder field =
+        FieldSpec.builder(arrayType, name, Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL);
+
+    if (elements.size() <= CHUNK_SIZE) {
+      CodeBlock.Builder initializer = CodeBlock.builder().add("{\n$>$>");
+      for (int i = 0; i < elements.size(); i++) {
+        initializer.add(elements.get(i)).add(i < elements.size() - 1 ? ",\n" : "\n");
+      }
+      factory.addField(field.initializer(initializer.add("$<$<}").build()).build());
+      return;
+    }
+
+    String initMethodName = "init" + StringUtils.capitalize(name.toLowerCase(Locale.US));
+    MethodSpec.Builder initMethod = MethodSpec.methodBuilder(initMethodName)
+        .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+        .returns(arrayType)
+        .addStatement("$T array = new $T[$L]", arrayType, componentType, elements.size());
+
+    for (int chunk = 0; chunk * CHUNK_SIZE < elements.size(); chunk++) {
+      String chunkMethodName = initMethodName + chunk;
+      MethodSpec.Builder chunkMethod = MethodSpec.methodBuilder(chunkMethodName)
+          .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+          .addParameter(arrayType, "array");
+      for (int i = chunk * CHUNK_SIZE; i < Math.min(elements.size(), (chunk + 1) * CHUNK_SIZE);
+          i++) {
+        chunkMethod.addStatement("array[$L] = $L", i, elements.get(i));
+      }
+      factory.addMethod(chunkMethod.build());
+      initMethod.addStatement("$N(array)", chunkMethodName);
+    }
 
-    // Write file
-    JavaFile.builder(packageName, typeSpec).build().writeTo(filer);
+    factory.addMethod(initMethod.addStatement("return array").build());
+    factory.addField(field.initializer("$N()", initMethodName).build());
   }
 
   /**
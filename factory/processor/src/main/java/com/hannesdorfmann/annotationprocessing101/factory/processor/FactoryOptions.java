@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hannesdorfmann.annotationprocessing101.factory.processor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Holds the processor options (passed to javac with <code>-Akey=value</code>) that affect the
+ * generated code of all factories.
+ *
+ * @author Hannes Dorfmann
+ */
+public class FactoryOptions {
+
+  /**
+   * How create() finds the class for an id, see {@link DispatchStrategy}
+   */
+  public static final String DISPATCH = "factory.dispatch";
+
+  /**
+   * If true, the generated factory holds a table of java.util.function.Supplier and offers
+   * supplierFor(id). Requires Java 8.
+   */
+  public static final String SUPPLIERS = "factory.suppliers";
+
+  /**
+   * If true, the source code of the factories is built in parallel. Reading the javac model and
+   * writing the files stays on the compiler thread.
+   */
+  public static final String PARALLEL = "factory.parallel";
+
+  /**
+   * If true, the processor reports the time spent in each phase and some numbers of each factory as
+   * NOTE and as JSON file {@link FactoryProcessor#STATS_FILE} in the source output directory. See
+   * {@link ProcessorStats}.
+   */
+  public static final String STATS = "factory.stats";
+
+  /**
+   * Which runtime metrics the generated factories collect, see {@link MetricsMode}. Requires Java 8
+   * unless it's off.
+   */
+  public static final String METRICS = "factory.metrics";
+
+  /**
+   * The name of the module that is compiled. If set, the generated factories are partial factories
+   * named <code>&lt;Group&gt;Factory_&lt;module&gt;</code> and the processor writes the module
+   * index {@link FactoryProcessor#MODULE_DIRECTORY}&lt;module&gt;{@link
+   * FactoryProcessor#MODULE_SUFFIX} that an assembly compilation (see {@link #ASSEMBLE}) reads.
+   */
+  public static final String MODULE = "factory.module";
+
+  /**
+   * Comma separated names of modules (see {@link #MODULE}) on the class path. Their @Factory
+   * annotated classes are added to the factories of this compilation, so one factory is generated
+   * for the classes of all modules.
+   */
+  public static final String ASSEMBLE = "factory.assemble";
+
+  /**
+   * If true, ids can be registered at runtime in addition to the generated ones and the generated
+   * factory offers tryCreate(id), which returns null for unknown ids. Requires Java 8.
+   */
+  public static final String REGISTRY = "factory.registry";
+
+  /**
+   * If true, the generated factory is a final class with static methods and a private constructor,
+   * so it can't be instantiated. Its nested interface Creator declares the same methods and the
+   * stateless constant CREATOR implements it for code that gets the factory injected.
+   */
+  public static final String STATIC = "factory.static";
+
+  /**
+   * The order of the ids and groups, see {@link IdOrder}
+   */
+  public static final String ORDER = "factory.order";
+
+  /**
+   * Path of a file with the recorded number of created instances per id, see {@link
+   * DispatchProfile}. The ids are ordered by their count, the most frequent first, and the most
+   * frequent ids get a fast path in front of a switch or perfect hash.
+   */
+  public static final String PROFILE = "factory.profile";
+
+  private DispatchStrategy dispatchStrategy;
+  private boolean suppliers;
+  private boolean parallel;
+  private boolean stats;
+  private MetricsMode metricsMode;
+  private boolean registry;
+  private boolean staticFactory;
+  private IdOrder order;
+  private String profile;
+  private String module;
+  private List<String> assembledModules;
+  private List<String> errors = new ArrayList<String>();
+
+  /**
+   * An option with an invalid value keeps its default, the error is available from {@link
+   * #getErrors()}.
+   *
+   * @param options the processor options as returned by
+   * {@link javax.annotation.processing.ProcessingEnvironment#getOptions()}
+   */
+  public FactoryOptions(Map<String, String> options) {
+    try {
+      dispatchStrategy = DispatchStrategy.fromOption(options.get(DISPATCH));
+    } catch (IllegalArgumentException e) {
+      errors.add(e.getMessage());
+      dispatchStrategy = DispatchStrategy.fromOption(null);
+    }
+    suppliers = parseBoolean(options, SUPPLIERS);
+    parallel = parseBoolean(options, PARALLEL);
+    stats = parseBoolean(options, STATS);
+    try {
+      metricsMode = MetricsMode.fromOption(options.get(METRICS));
+    } catch (IllegalArgumentException e) {
+      errors.add(e.getMessage());
+      metricsMode = MetricsMode.fromOption(null);
+    }
+    registry = parseBoolean(options, REGISTRY);
+    staticFactory = parseBoolean(options, STATIC);
+    try {
+      order = IdOrder.fromOption(options.get(ORDER));
+    } catch (IllegalArgumentException e) {
+      errors.add(e.getMessage());
+      order = IdOrder.fromOption(null);
+    }
+    profile = options.get(PROFILE);
+    if (profile != null && profile.length() == 0) {
+      profile = null;
+    }
+
+    module = options.get(MODULE);
+    if (module != null && module.length() == 0) {
+      module = null;
+    }
+    if (module != null && !checkModuleName(module, MODULE)) {
+      module = null;
+    }
+
+    assembledModules = new ArrayList<String>();
+    String assemble = options.get(ASSEMBLE);
+    if (assemble != null) {
+      for (String name : assemble.split(",")) {
+        name = name.trim();
+        if (name.length() > 0 && checkModuleName(name, ASSEMBLE)) {
+          assembledModules.add(name);
+        }
+      }
+    }
+  }
+
+  /**
+   * Get the keys of all supported options
+   */
+  public static Set<String> getSupportedOptions() {
+    Set<String> options = new LinkedHashSet<String>();
+    options.add(DISPATCH);
+    options.add(SUPPLIERS);
+    options.add(PARALLEL);
+    options.add(STATS);
+    options.add(METRICS);
+    options.add(REGISTRY);
+    options.add(STATIC);
+    options.add(ORDER);
+    options.add(PROFILE);
+    options.add(MODULE);
+    options.add(ASSEMBLE);
+    return options;
+  }
+
+  /**
+   * Get the error messages of the options with an invalid value
+   */
+  public List<String> getErrors() {
+    return errors;
+  }
+
+  private boolean checkModuleName(String name, String key) {
+    for (int i = 0; i < name.length(); i++) {
+      char c = name.charAt(i);
+      if (!Character.isLetterOrDigit(c) && c != '_' && c != '-' && c != '.') {
+        errors.add(String.format(
+            "Invalid module name '%s' in option %s, only letters, digits, '_', '-' and '.' are "
+                + "allowed", name, key));
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean parseBoolean(Map<String, String> options, String key) {
+    String value = options.get(key);
+    if (value == null || value.length() == 0) {
+      return false;
+    }
+    if ("true".equalsIgnoreCase(value)) {
+      return true;
+    }
+    if ("false".equalsIgnoreCase(value)) {
+      return false;
+    }
+    errors.add(
+        String.format("Unknown value '%s' for option %s, must be true or false", value, key));
+    return false;
+  }
+
+  /**
+   * Get the strategy specified by {@link #DISPATCH}
+   */
+  public DispatchStrategy getDispatchStrategy() {
+    return dispatchStrategy;
+  }
+
+  /**
+   * Checks if a supplier table should be generated, see {@link #SUPPLIERS}
+   */
+  public boolean isSuppliers() {
+    return suppliers;
+  }
+
+  /**
+   * Checks if the factories should be built in parallel, see {@link #PARALLEL}
+   */
+  public boolean isParallel() {
+    return parallel;
+  }
+
+  /**
+   * Checks if the processor should report statistics, see {@link #STATS}
+   */
+  public boolean isStats() {
+    return stats;
+  }
+
+  /**
+   * Get the mode specified by {@link #METRICS}
+   */
+  public MetricsMode getMetricsMode() {
+    return metricsMode;
+  }
+
+  /**
+   * Checks if ids can be registered at runtime, see {@link #REGISTRY}
+   */
+  public boolean isRegistry() {
+    return registry;
+  }
+
+  /**
+   * Checks if the factories should only have static methods, see {@link #STATIC}
+   */
+  public boolean isStatic() {
+    return staticFactory;
+  }
+
+  /**
+   * Get the order specified by {@link #ORDER}
+   */
+  public IdOrder getOrder() {
+    return order;
+  }
+
+  /**
+   * Get the path of the profile specified by {@link #PROFILE} or null
+   */
+  public String getProfile() {
+    return profile;
+  }
+
+  /**
+   * Get the name of the module specified by {@link #MODULE} or null
+   */
+  public String getModule() {
+    return module;
+  }
+
+  /**
+   * Get the modules specified by {@link #ASSEMBLE}. Empty if none.
+   */
+  public List<String> getAssembledModules() {
+    return Collections.unmodifiableList(assembledModules);
+  }
+}
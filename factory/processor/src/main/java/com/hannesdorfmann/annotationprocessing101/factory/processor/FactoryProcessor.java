@@ -18,11 +18,27 @@ package com.hannesdorfmann.annotationprocessing101.factory.processor;
 
 import com.google.auto.service.AutoService;
 import com.hannesdorfmann.annotationprocessing101.factory.annotation.Factory;
+import com.hannesdorfmann.annotationprocessing101.factory.annotation.Poolable;
+import com.hannesdorfmann.annotationprocessing101.factory.annotation.Scope;
+import com.squareup.javapoet.JavaFile;
+import com.squareup.javapoet.TypeName;
+import java.io.File;
 import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import javax.annotation.processing.AbstractProcessor;
 import javax.annotation.processing.Filer;
 import javax.annotation.processing.Messager;
@@ -30,16 +46,26 @@ import javax.annotation.processing.ProcessingEnvironment;
 import javax.annotation.processing.Processor;
 import javax.annotation.processing.RoundEnvironment;
 import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
 import javax.lang.model.element.Element;
 import javax.lang.model.element.ElementKind;
 import javax.lang.model.element.ExecutableElement;
 import javax.lang.model.element.Modifier;
 import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.TypeParameterElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
 import javax.lang.model.type.TypeKind;
 import javax.lang.model.type.TypeMirror;
+import javax.lang.model.type.WildcardType;
 import javax.lang.model.util.Elements;
 import javax.lang.model.util.Types;
 import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+import org.apache.commons.lang3.StringEscapeUtils;
 
 /**
  * Annotation Processor for @Factory annotation
@@ -48,12 +74,64 @@ import javax.tools.Diagnostic;
  */
 @AutoService(Processor.class) public class FactoryProcessor extends AbstractProcessor {
 
+  /**
+   * Name of the JSON report written to the source output directory, see {@link
+   * FactoryOptions#STATS}
+   */
+  public static final String STATS_FILE = "factory-stats.json";
+
+  /**
+   * The class path directory of the module index files, see {@link FactoryOptions#MODULE}
+   */
+  public static final String MODULE_DIRECTORY = "META-INF/factory/";
+
+  /**
+   * Will be added to the module name to get the name of the module index file
+   */
+  public static final String MODULE_SUFFIX = ".module";
+
   private Types typeUtils;
   private Elements elementUtils;
   private Filer filer;
   private Messager messager;
-  private Map<String, FactoryGroupedClasses> factoryClasses =
-      new LinkedHashMap<String, FactoryGroupedClasses>();
+  private FactoryOptions options;
+  private ProcessorStats stats = new ProcessorStats();
+  private DispatchProfile profile;
+
+  /**
+   * All groups by qualified group name, in the order of {@link FactoryOptions#ORDER}. Collected
+   * across rounds.
+   */
+  private Map<String, FactoryGroupedClasses> factoryClasses;
+
+  /**
+   * The qualified names of the groups with invalid @Factory annotated classes. Their factories
+   * aren't generated. Collected across rounds.
+   */
+  private Set<String> failedGroups = new HashSet<String>();
+
+  /**
+   * The number of the current processing round
+   */
+  private int round;
+
+  /**
+   * The qualified names of all root classes of the compilation, collected across rounds. Their
+   * declarations are checked for unresolved types, see {@link #selectCompleteGroups()}.
+   */
+  private Set<String> rootClassNames = new LinkedHashSet<String>();
+
+  /**
+   * The qualified names of the groups that got new classes in the current round
+   */
+  private Set<String> changedGroups = new HashSet<String>();
+
+  // Caches for checkValidClass(), kept for the whole processing session
+  private Map<String, TypeElement> groupElements = new HashMap<String, TypeElement>();
+  private Map<TypeElement, TypeMirror> groupTypes = new HashMap<TypeElement, TypeMirror>();
+  private Map<TypeElement, Set<TypeElement>> verifiedSubtypes =
+      new HashMap<TypeElement, Set<TypeElement>>();
+  private TypeMirror poolableType;
 
   @Override public synchronized void init(ProcessingEnvironment processingEnv) {
     super.init(processingEnv);
@@ -61,6 +139,26 @@ import javax.tools.Diagnostic;
     elementUtils = processingEnv.getElementUtils();
     filer = processingEnv.getFiler();
     messager = processingEnv.getMessager();
+
+    options = new FactoryOptions(processingEnv.getOptions());
+    for (String optionError : options.getErrors()) {
+      error(null, optionError);
+    }
+
+    if (options.getProfile() != null) {
+      try {
+        profile = DispatchProfile.read(new File(options.getProfile()));
+      } catch (IOException e) {
+        error(null, String.format("Could not read the profile specified in option %s: %s",
+            FactoryOptions.PROFILE, e.getMessage()));
+      }
+    }
+
+    if (options.getOrder() == IdOrder.SORTED) {
+      factoryClasses = new TreeMap<String, FactoryGroupedClasses>();
+    } else {
+      factoryClasses = new LinkedHashMap<String, FactoryGroupedClasses>();
+    }
   }
 
   @Override public Set<String> getSupportedAnnotationTypes() {
@@ -69,10 +167,84 @@ import javax.tools.Diagnostic;
     return annotations;
   }
 
+  @Override public Set<String> getSupportedOptions() {
+    return FactoryOptions.getSupportedOptions();
+  }
+
   @Override public SourceVersion getSupportedSourceVersion() {
     return SourceVersion.latestSupported();
   }
 
+  /**
+   * Get the element of the type specified in {@link Factory#type()}. Every group type is looked up
+   * only once per processing session.
+   *
+   * @throws ProcessingException if the type can't be found
+   */
+  private TypeElement getGroupElement(FactoryAnnotatedClass item) throws ProcessingException {
+    String groupName = item.getQualifiedFactoryGroupName();
+    TypeElement groupElement = groupElements.get(groupName);
+    if (groupElement == null) {
+      groupElement = elementUtils.getTypeElement(groupName);
+      if (groupElement == null) {
+        throw new ProcessingException(item.getTypeElement(),
+            "The type %s specified in @%s of class %s can't be found", groupName,
+            Factory.class.getSimpleName(), item.getQualifiedClassName());
+      }
+      groupElements.put(groupName, groupElement);
+      groupTypes.put(groupElement, typeUtils.erasure(groupElement.asType()));
+      verifiedSubtypes.put(groupElement, new HashSet<TypeElement>());
+    }
+    return groupElement;
+  }
+
+  /**
+   * Checks if a class extends or implements the given group type. Walks up the inheritance tree and
+   * remembers every class on the way that turned out to be a subtype. Classes that share a base
+   * class are therefore verified with one lookup, instead of walking the whole tree again.
+   */
+  private boolean isSubtypeOfGroup(TypeElement classElement, TypeElement groupElement) {
+    TypeMirror groupType = groupTypes.get(groupElement);
+    Set<TypeElement> verified = verifiedSubtypes.get(groupElement);
+    boolean isInterface = groupElement.getKind() == ElementKind.INTERFACE;
+
+    List<TypeElement> visited = new ArrayList<TypeElement>();
+    TypeElement currentClass = classElement;
+    boolean subtype = false;
+    while (currentClass != null && !subtype) {
+      if (verified.contains(currentClass)) {
+        subtype = true;
+        break;
+      }
+      visited.add(currentClass);
+
+      TypeMirror superClassType = currentClass.getSuperclass();
+      if (superClassType.getKind() == TypeKind.NONE) {
+        // Basis class (java.lang.Object) reached, so exit
+        break;
+      }
+
+      if (isInterface) {
+        for (TypeMirror interfaceType : currentClass.getInterfaces()) {
+          if (typeUtils.isSubtype(typeUtils.erasure(interfaceType), groupType)) {
+            subtype = true;
+            break;
+          }
+        }
+      } else {
+        subtype = typeUtils.isSameType(typeUtils.erasure(superClassType), groupType);
+      }
+
+      // Moving up in inheritance tree
+      currentClass = (TypeElement) typeUtils.asElement(superClassType);
+    }
+
+    if (subtype) {
+      verified.addAll(visited);
+    }
+    return subtype;
+  }
+
   /**
    * Checks if the annotated element observes our rules
    */
@@ -94,106 +266,657 @@ import javax.tools.Diagnostic;
     }
 
     // Check inheritance: Class must be childclass as specified in @Factory.type();
-    TypeElement superClassElement =
-        elementUtils.getTypeElement(item.getQualifiedFactoryGroupName());
-    if (superClassElement.getKind() == ElementKind.INTERFACE) {
-      // Check interface implemented
-      if (!classElement.getInterfaces().contains(superClassElement.asType())) {
+    TypeElement superClassElement = getGroupElement(item);
+    if (!isSubtypeOfGroup(classElement, superClassElement)) {
+      if (superClassElement.getKind() == ElementKind.INTERFACE) {
         throw new ProcessingException(classElement,
             "The class %s annotated with @%s must implement the interface %s",
             classElement.getQualifiedName().toString(), Factory.class.getSimpleName(),
             item.getQualifiedFactoryGroupName());
+      } else {
+        throw new ProcessingException(classElement,
+            "The class %s annotated with @%s must inherit from %s",
+            classElement.getQualifiedName().toString(), Factory.class.getSimpleName(),
+            item.getQualifiedFactoryGroupName());
       }
-    } else {
-      // Check subclassing
-      TypeElement currentClass = classElement;
-      while (true) {
-        TypeMirror superClassType = currentClass.getSuperclass();
+    }
 
-        if (superClassType.getKind() == TypeKind.NONE) {
-          // Basis class (java.lang.Object) reached, so exit
-          throw new ProcessingException(classElement,
-              "The class %s annotated with @%s must inherit from %s",
-              classElement.getQualifiedName().toString(), Factory.class.getSimpleName(),
-              item.getQualifiedFactoryGroupName());
-        }
+    // Check if a pooled class can be reset
+    if (item.isPooled()) {
+      if (poolableType == null) {
+        poolableType =
+            elementUtils.getTypeElement(Poolable.class.getCanonicalName()).asType();
+      }
+      if (!typeUtils.isAssignable(classElement.asType(), poolableType)) {
+        throw new ProcessingException(classElement,
+            "The class %s specifies a poolSize in @%s and therefore must implement %s",
+            classElement.getQualifiedName().toString(), Factory.class.getSimpleName(),
+            Poolable.class.getCanonicalName());
+      }
+    }
+
+    // Check if a singleton is stateless
+    if (item.isSingleton()) {
+      if (item.isPooled()) {
+        throw new ProcessingException(classElement,
+            "The class %s is a %s and therefore can't specify a poolSize in @%s",
+            classElement.getQualifiedName().toString(), Scope.SINGLETON,
+            Factory.class.getSimpleName());
+      }
 
-        if (superClassType.toString().equals(item.getQualifiedFactoryGroupName())) {
-          // Required super class found
-          break;
+      TypeElement currentClass = classElement;
+      while (currentClass != null) {
+        for (Element enclosed : currentClass.getEnclosedElements()) {
+          if (enclosed.getKind() == ElementKind.FIELD
+              && !enclosed.getModifiers().contains(Modifier.STATIC)
+              && !enclosed.getModifiers().contains(Modifier.FINAL)) {
+            throw new ProcessingException(classElement,
+                "The class %s is a %s and therefore must not have the non-final field %s.%s",
+                classElement.getQualifiedName().toString(), Scope.SINGLETON,
+                currentClass.getQualifiedName().toString(), enclosed.getSimpleName().toString());
+          }
         }
 
         // Moving up in inheritance tree
-        currentClass = (TypeElement) typeUtils.asElement(superClassType);
+        currentClass = (TypeElement) typeUtils.asElement(currentClass.getSuperclass());
       }
     }
 
-    // Check if an empty public constructor is given
+    // Instances that are reused can't get other constructor arguments
+    if (item.hasArgs() && (item.isPooled() || item.isSingleton())) {
+      throw new ProcessingException(classElement,
+          "The class %s is %s and therefore can't specify args in @%s",
+          classElement.getQualifiedName().toString(),
+          item.isPooled() ? "pooled" : "a " + Scope.SINGLETON, Factory.class.getSimpleName());
+    }
+
+    // Check if a public constructor with the parameters of args() (by default empty) is given
     for (Element enclosed : classElement.getEnclosedElements()) {
       if (enclosed.getKind() == ElementKind.CONSTRUCTOR) {
         ExecutableElement constructorElement = (ExecutableElement) enclosed;
-        if (constructorElement.getParameters().size() == 0 && constructorElement.getModifiers()
-            .contains(Modifier.PUBLIC)) {
-          // Found an empty constructor
+        if (constructorElement.getModifiers().contains(Modifier.PUBLIC) && hasParameterTypes(
+            constructorElement, item.getArgs())) {
+          // Found the constructor, the factory uses its generic parameter types
+          List<TypeName> parameterTypes = new ArrayList<TypeName>();
+          for (VariableElement parameter : constructorElement.getParameters()) {
+            parameterTypes.add(TypeName.get(parameter.asType()));
+          }
+          item.setConstructorParameterTypes(parameterTypes);
           return;
         }
       }
     }
 
-    // No empty constructor found
+    // No matching constructor found
+    if (!item.hasArgs()) {
+      throw new ProcessingException(classElement,
+          "The class %s must provide an public empty default constructor",
+          classElement.getQualifiedName().toString());
+    }
     throw new ProcessingException(classElement,
-        "The class %s must provide an public empty default constructor",
-        classElement.getQualifiedName().toString());
+        "The class %s must provide a public constructor with the parameters %s as specified in "
+            + "args() of @%s", classElement.getQualifiedName().toString(), item.getArgs(),
+        Factory.class.getSimpleName());
+  }
+
+  /**
+   * Checks if the (erased) parameter types of a constructor are the given types
+   */
+  private boolean hasParameterTypes(ExecutableElement constructorElement, List<TypeName> types) {
+    List<? extends VariableElement> parameters = constructorElement.getParameters();
+    if (parameters.size() != types.size()) {
+      return false;
+    }
+    for (int i = 0; i < parameters.size(); i++) {
+      TypeName parameterType = TypeName.get(typeUtils.erasure(parameters.get(i).asType()));
+      if (!parameterType.toString().equals(types.get(i).toString())) {
+        return false;
+      }
+    }
+    return true;
   }
 
   @Override
   public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
 
+    round++;
+    stats.newRound();
+    changedGroups.clear();
+
     try {
 
-      // Scan classes
+      // Scan classes. An invalid class is reported and only excludes its group, so all errors are
+      // reported at once.
+      long start = System.nanoTime();
       for (Element annotatedElement : roundEnv.getElementsAnnotatedWith(Factory.class)) {
+        try {
 
-        // Check if a class has been annotated with @Factory
-        if (annotatedElement.getKind() != ElementKind.CLASS) {
-          throw new ProcessingException(annotatedElement, "Only classes can be annotated with @%s",
-              Factory.class.getSimpleName());
-        }
+          // Check if a class has been annotated with @Factory
+          if (annotatedElement.getKind() != ElementKind.CLASS) {
+            throw new ProcessingException(annotatedElement,
+                "Only classes can be annotated with @%s", Factory.class.getSimpleName());
+          }
 
-        // We can cast it, because we know that it of ElementKind.CLASS
-        TypeElement typeElement = (TypeElement) annotatedElement;
+          // We can cast it, because we know that it of ElementKind.CLASS
+          TypeElement typeElement = (TypeElement) annotatedElement;
 
-        FactoryAnnotatedClass annotatedClass = new FactoryAnnotatedClass(typeElement);
+          FactoryAnnotatedClass annotatedClass = new FactoryAnnotatedClass(typeElement);
+          long validationStart = System.nanoTime();
+          stats.add(ProcessorStats.Phase.SCANNING, validationStart - start);
 
-        checkValidClass(annotatedClass);
+          checkValidClass(annotatedClass);
+          long groupingStart = System.nanoTime();
+          stats.add(ProcessorStats.Phase.VALIDATION, groupingStart - validationStart);
 
-        // Everything is fine, so try to add
-        FactoryGroupedClasses factoryClass =
-            factoryClasses.get(annotatedClass.getQualifiedFactoryGroupName());
-        if (factoryClass == null) {
-          String qualifiedGroupName = annotatedClass.getQualifiedFactoryGroupName();
-          factoryClass = new FactoryGroupedClasses(qualifiedGroupName);
-          factoryClasses.put(qualifiedGroupName, factoryClass);
+          // Everything is fine, so try to add
+          addToGroup(annotatedClass);
+          stats.addAnnotatedClass();
+          start = System.nanoTime();
+          stats.add(ProcessorStats.Phase.GROUPING, start - groupingStart);
+        } catch (ProcessingException e) {
+          fail(annotatedElement, e);
+          start = System.nanoTime();
         }
+      }
+      stats.add(ProcessorStats.Phase.SCANNING, System.nanoTime() - start);
 
-        // Checks if id is conflicting with another @Factory annotated class with the same id
-        factoryClass.add(annotatedClass);
+      if (round == 1 && !options.getAssembledModules().isEmpty()) {
+        for (String module : options.getAssembledModules()) {
+          readModule(module);
+        }
       }
 
-      // Generate code
-      for (FactoryGroupedClasses factoryClass : factoryClasses.values()) {
-        factoryClass.generateCode(elementUtils, filer);
+      List<FactoryGroupedClasses> pending;
+      if (roundEnv.processingOver()) {
+        // Only the factories that waited for other processors until the end are left
+        pending = new ArrayList<FactoryGroupedClasses>();
+        for (FactoryGroupedClasses factoryClass : factoryClasses.values()) {
+          if (!factoryClass.isGenerated()
+              && !failedGroups.contains(factoryClass.getQualifiedFactoryGroupName())) {
+            pending.add(factoryClass);
+          }
+        }
+      } else {
+        for (Element rootElement : roundEnv.getRootElements()) {
+          if (rootElement instanceof TypeElement) {
+            rootClassNames.add(((TypeElement) rootElement).getQualifiedName().toString());
+          }
+        }
+        pending = selectCompleteGroups();
       }
-      factoryClasses.clear();
-    } catch (ProcessingException e) {
-      error(e.getElement(), e.getMessage());
+      generateCode(pending);
     } catch (IOException e) {
       error(null, e.getMessage());
     }
 
+    if (roundEnv.processingOver() && options.getModule() != null) {
+      writeModule(options.getModule());
+    }
+
+    if (roundEnv.processingOver() && options.isStats()) {
+      reportStats();
+    }
+
+    return true;
+  }
+
+  /**
+   * Selects the factories to write in this round. Other processors may generate @Factory annotated
+   * classes in any round, but a factory should be written before the last round: javac compiles
+   * sources written in the last round without processing them, and only method bodies of the
+   * other classes can use them. Therefore:
+   * <ul>
+   * <li>Nothing is written while the declarations of the compiled code reference types that
+   * neither exist nor are factories. Another processor still has to generate them, maybe along
+   * with more @Factory annotated classes.</li>
+   * <li>Otherwise the factories referenced in declarations are written, because they are needed
+   * before the last round, and the factories that got no new classes in this round.</li>
+   * <li>A factory that got new classes in this round waits for the next round, which is certain if
+   * another factory is written now. Otherwise it's written right away, too.</li>
+   * </ul>
+   */
+  private List<FactoryGroupedClasses> selectCompleteGroups() {
+    Set<String> unresolved = new LinkedHashSet<String>();
+    for (String rootClassName : rootClassNames) {
+      // Elements of previous rounds must not be reused, so look up the class again
+      TypeElement rootClass = elementUtils.getTypeElement(rootClassName);
+      if (rootClass != null) {
+        addUnresolvedTypes(rootClass, unresolved);
+      }
+    }
+
+    Set<FactoryGroupedClasses> referenced = new HashSet<FactoryGroupedClasses>();
+    for (String name : unresolved) {
+      FactoryGroupedClasses factoryClass = findFactory(name);
+      if (factoryClass == null) {
+        return Collections.emptyList();
+      }
+      referenced.add(factoryClass);
+    }
+
+    List<FactoryGroupedClasses> complete = new ArrayList<FactoryGroupedClasses>();
+    List<FactoryGroupedClasses> changed = new ArrayList<FactoryGroupedClasses>();
+    for (FactoryGroupedClasses factoryClass : factoryClasses.values()) {
+      String groupName = factoryClass.getQualifiedFactoryGroupName();
+      if (factoryClass.isGenerated() || failedGroups.contains(groupName)) {
+        continue;
+      }
+      if (referenced.contains(factoryClass) || !changedGroups.contains(groupName)) {
+        complete.add(factoryClass);
+      } else {
+        changed.add(factoryClass);
+      }
+    }
+    return complete.isEmpty() ? changed : complete;
+  }
+
+  /**
+   * Get the factory, that isn't written yet, with the given simple or qualified name (as written
+   * in the source code, which might also refer to a nested type of the factory)
+   */
+  private FactoryGroupedClasses findFactory(String name) {
+    for (FactoryGroupedClasses factoryClass : factoryClasses.values()) {
+      if (factoryClass.isGenerated()) {
+        continue;
+      }
+      String qualifiedName = factoryClass.getQualifiedFactoryName();
+      String simpleName = qualifiedName.substring(qualifiedName.lastIndexOf('.') + 1);
+      if (name.equals(qualifiedName) || name.startsWith(qualifiedName + ".")
+          || name.equals(simpleName) || name.startsWith(simpleName + ".")) {
+        return factoryClass;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Adds the names of the unresolved types in the declarations of a class and its nested classes:
+   * super types, type parameter bounds, field types, method signatures and annotations
+   */
+  private void addUnresolvedTypes(TypeElement classElement, Set<String> unresolved) {
+    addUnresolvedAnnotationTypes(classElement, unresolved);
+    addUnresolvedTypes(classElement.getSuperclass(), unresolved);
+    for (TypeMirror interfaceType : classElement.getInterfaces()) {
+      addUnresolvedTypes(interfaceType, unresolved);
+    }
+    addUnresolvedBounds(classElement.getTypeParameters(), unresolved);
+    for (Element member : classElement.getEnclosedElements()) {
+      if (member instanceof TypeElement) {
+        addUnresolvedTypes((TypeElement) member, unresolved);
+      } else if (member instanceof VariableElement) {
+        addUnresolvedAnnotationTypes(member, unresolved);
+        addUnresolvedTypes(member.asType(), unresolved);
+      } else if (member instanceof ExecutableElement) {
+        ExecutableElement method = (ExecutableElement) member;
+        addUnresolvedAnnotationTypes(method, unresolved);
+        addUnresolvedBounds(method.getTypeParameters(), unresolved);
+        addUnresolvedTypes(method.getReturnType(), unresolved);
+        for (VariableElement parameter : method.getParameters()) {
+          addUnresolvedAnnotationTypes(parameter, unresolved);
+          addUnresolvedTypes(parameter.asType(), unresolved);
+        }
+        for (TypeMirror thrownType : method.getThrownTypes()) {
+          addUnresolvedTypes(thrownType, unresolved);
+        }
+      }
+    }
+  }
+
+  private void addUnresolvedBounds(List<? extends TypeParameterElement> typeParameters,
+      Set<String> unresolved) {
+    for (TypeParameterElement typeParameter : typeParameters) {
+      for (TypeMirror bound : typeParameter.getBounds()) {
+        addUnresolvedTypes(bound, unresolved);
+      }
+    }
+  }
+
+  /**
+   * Adds the names of unresolved annotation types and class literals in annotation values
+   */
+  private void addUnresolvedAnnotationTypes(Element element, Set<String> unresolved) {
+    for (AnnotationMirror annotation : element.getAnnotationMirrors()) {
+      addUnresolvedTypes(annotation, unresolved);
+    }
+  }
+
+  private void addUnresolvedTypes(AnnotationMirror annotation, Set<String> unresolved) {
+    addUnresolvedTypes(annotation.getAnnotationType(), unresolved);
+    for (AnnotationValue value : annotation.getElementValues().values()) {
+      addUnresolvedTypes(value, unresolved);
+    }
+  }
+
+  private void addUnresolvedTypes(AnnotationValue value, Set<String> unresolved) {
+    Object content = value.getValue();
+    if (content instanceof TypeMirror) {
+      addUnresolvedTypes((TypeMirror) content, unresolved);
+    } else if (content instanceof AnnotationMirror) {
+      addUnresolvedTypes((AnnotationMirror) content, unresolved);
+    } else if (content instanceof List) {
+      for (Object element : (List<?>) content) {
+        if (element instanceof AnnotationValue) {
+          addUnresolvedTypes((AnnotationValue) element, unresolved);
+        }
+      }
+    }
+  }
+
+  private void addUnresolvedTypes(TypeMirror type, Set<String> unresolved) {
+    switch (type.getKind()) {
+      case ERROR:
+        // The name as written in the source code, without type arguments
+        String name = type.toString();
+        int typeArguments = name.indexOf('<');
+        unresolved.add(typeArguments < 0 ? name : name.substring(0, typeArguments));
+        break;
+      case DECLARED:
+        for (TypeMirror typeArgument : ((DeclaredType) type).getTypeArguments()) {
+          addUnresolvedTypes(typeArgument, unresolved);
+        }
+        break;
+      case ARRAY:
+        addUnresolvedTypes(((ArrayType) type).getComponentType(), unresolved);
+        break;
+      case WILDCARD:
+        WildcardType wildcardType = (WildcardType) type;
+        if (wildcardType.getExtendsBound() != null) {
+          addUnresolvedTypes(wildcardType.getExtendsBound(), unresolved);
+        }
+        if (wildcardType.getSuperBound() != null) {
+          addUnresolvedTypes(wildcardType.getSuperBound(), unresolved);
+        }
+        break;
+      default:
+        break;
+    }
+  }
+
+  /**
+   * Reports the error of an annotated element and excludes the group of the element from code
+   * generation
+   */
+  private void fail(Element annotatedElement, ProcessingException e) {
+    error(e.getElement(), e.getMessage());
+    String groupName = FactoryAnnotatedClass.getQualifiedGroupName(annotatedElement);
+    if (groupName != null) {
+      failedGroups.add(groupName);
+    }
+  }
+
+  /**
+   * Adds an annotated class to the factory of its group
+   *
+   * @throws ProcessingException if the id is conflicting with another @Factory annotated class
+   */
+  private void addToGroup(FactoryAnnotatedClass annotatedClass) throws ProcessingException {
+    String qualifiedGroupName = annotatedClass.getQualifiedFactoryGroupName();
+    FactoryGroupedClasses factoryClass = factoryClasses.get(qualifiedGroupName);
+    if (factoryClass == null) {
+      factoryClass = new FactoryGroupedClasses(qualifiedGroupName, options.getModule(),
+          options.getOrder());
+      factoryClasses.put(qualifiedGroupName, factoryClass);
+    }
+    factoryClass.add(annotatedClass);
+    changedGroups.add(qualifiedGroupName);
+  }
+
+  /**
+   * Writes the index of the module, see {@link FactoryOptions#MODULE}. It has one line per
+   * annotated class with the qualified group name, the id (escaped like a java string literal, but
+   * without the quotes) and the qualified name of the class separated by tabs.
+   */
+  private void writeModule(String module) {
+    String fileName = MODULE_DIRECTORY + module + MODULE_SUFFIX;
+    List<Element> originatingElements = new ArrayList<Element>();
+    StringBuilder content = new StringBuilder("# module ").append(module).append('\n');
+    for (FactoryGroupedClasses factoryClass : factoryClasses.values()) {
+      for (FactoryAnnotatedClass item : factoryClass.getItems()) {
+        originatingElements.add(item.getTypeElement());
+        content.append(factoryClass.getQualifiedFactoryGroupName())
+            .append('\t')
+            .append(StringEscapeUtils.escapeJava(item.getId()))
+            .append('\t')
+            .append(item.getQualifiedClassName())
+            .append('\n');
+      }
+    }
+
+    try {
+      FileObject file = filer.createResource(StandardLocation.CLASS_OUTPUT, "", fileName,
+          originatingElements.toArray(new Element[originatingElements.size()]));
+      Writer writer = file.openWriter();
+      try {
+        writer.write(content.toString());
+      } finally {
+        writer.close();
+      }
+    } catch (IOException e) {
+      error(null, "Could not write " + fileName + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Reads the index of a module on the class path (see {@link FactoryOptions#ASSEMBLE}) and adds
+   * its annotated classes to the factories of this compilation. The classes are validated again,
+   * because the module might have been compiled against other versions of the group types. Like
+   * for the classes of this compilation an invalid class is reported and only excludes its group.
+   */
+  private void readModule(String module) {
+    String fileName = MODULE_DIRECTORY + module + MODULE_SUFFIX;
+    CharSequence content;
+    try {
+      content = filer.getResource(StandardLocation.CLASS_PATH, "", fileName).getCharContent(true);
+    } catch (IOException e) {
+      error(null, String.format(
+          "The module %s specified in option %s can't be found, %s is not on the class path",
+          module, FactoryOptions.ASSEMBLE, fileName));
+      return;
+    }
+
+    for (String line : content.toString().split("\n")) {
+      if (line.length() == 0 || line.startsWith("#")) {
+        continue;
+      }
+      String[] columns = line.split("\t");
+      if (columns.length != 3) {
+        error(null, String.format("Invalid line in %s: %s", fileName, line));
+        continue;
+      }
+
+      try {
+        TypeElement classElement = elementUtils.getTypeElement(columns[2]);
+        if (classElement == null || classElement.getAnnotation(Factory.class) == null) {
+          throw new ProcessingException(null,
+              "The class %s listed in %s can't be found or isn't annotated with @%s", columns[2],
+              fileName, Factory.class.getSimpleName());
+        }
+
+        FactoryAnnotatedClass annotatedClass = new FactoryAnnotatedClass(classElement);
+        if (!annotatedClass.getQualifiedFactoryGroupName().equals(columns[0])
+            || !annotatedClass.getId().equals(StringEscapeUtils.unescapeJava(columns[1]))) {
+          throw new ProcessingException(classElement,
+              "The class %s has changed since module %s has been compiled, %s is out of date",
+              columns[2], module, fileName);
+        }
+        checkValidClass(annotatedClass);
+        addToGroup(annotatedClass);
+        stats.addAnnotatedClass();
+      } catch (ProcessingException e) {
+        error(e.getElement(), e.getMessage());
+        failedGroups.add(columns[0]);
+      }
+    }
+  }
+
+  /**
+   * Prints the statistics as NOTE and writes them to {@link #STATS_FILE}
+   */
+  private void reportStats() {
+    for (String line : stats.toLines()) {
+      messager.printMessage(Diagnostic.Kind.NOTE, line);
+    }
+
+    try {
+      FileObject file = filer.createResource(StandardLocation.SOURCE_OUTPUT, "", STATS_FILE);
+      Writer writer = file.openWriter();
+      try {
+        writer.write(stats.toJson());
+      } finally {
+        writer.close();
+      }
+    } catch (IOException e) {
+      error(null, "Could not write " + STATS_FILE + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Generates the factories of the given groups. In parallel mode the source code of each factory
+   * is built on a fork join pool, while reading the javac model and writing the files (neither is
+   * thread safe) stays on the compiler thread.
+   */
+  private void generateCode(List<FactoryGroupedClasses> groups) throws IOException {
+
+    for (FactoryGroupedClasses factoryClass : groups) {
+      warnIgnoredOptions(factoryClass);
+    }
+
+    if (profile != null) {
+      for (FactoryGroupedClasses factoryClass : groups) {
+        factoryClass.applyProfile(profile.getCounts(factoryClass.getQualifiedFactoryGroupName()));
+      }
+    }
+
+    if (!options.isParallel() || groups.size() < 2) {
+      for (FactoryGroupedClasses factoryClass : groups) {
+        long start = System.nanoTime();
+        factoryClass.resolve(elementUtils);
+        factoryClass.computeFingerprint(options);
+        if (rewritePreviousSource(factoryClass, start)) {
+          continue;
+        }
+        JavaFile javaFile = factoryClass.buildJavaFile(options);
+        long writingStart = System.nanoTime();
+        write(factoryClass, javaFile);
+        stats.addGroup(factoryClass, writingStart - start, System.nanoTime() - writingStart,
+            false);
+      }
+      return;
+    }
+
+    // Unchanged factories are written right away, only the others are built on the pool
+    List<FactoryGroupedClasses> changedGroups = new ArrayList<FactoryGroupedClasses>();
+    for (FactoryGroupedClasses factoryClass : groups) {
+      long start = System.nanoTime();
+      factoryClass.resolve(elementUtils);
+      factoryClass.computeFingerprint(options);
+      if (!rewritePreviousSource(factoryClass, start)) {
+        changedGroups.add(factoryClass);
+      }
+    }
+    groups = changedGroups;
+
+    final long[] buildingNanos = new long[groups.size()];
+    List<Callable<JavaFile>> tasks = new ArrayList<Callable<JavaFile>>(groups.size());
+    for (int i = 0; i < groups.size(); i++) {
+      final FactoryGroupedClasses factoryClass = groups.get(i);
+      final int index = i;
+      tasks.add(new Callable<JavaFile>() {
+        @Override public JavaFile call() {
+          long start = System.nanoTime();
+          JavaFile javaFile = factoryClass.buildJavaFile(options);
+          buildingNanos[index] = System.nanoTime() - start;
+          return javaFile;
+        }
+      });
+    }
+
+    ForkJoinPool pool = new ForkJoinPool();
+    try {
+      List<Future<JavaFile>> javaFiles = pool.invokeAll(tasks);
+      for (int i = 0; i < groups.size(); i++) {
+        JavaFile javaFile = javaFiles.get(i).get();
+        long writingStart = System.nanoTime();
+        write(groups.get(i), javaFile);
+        stats.addGroup(groups.get(i), buildingNanos[i], System.nanoTime() - writingStart, false);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while generating factories", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * Warns about options that can't be applied to a factory with constructor arguments
+   */
+  private void warnIgnoredOptions(FactoryGroupedClasses factoryClass) {
+    if (!factoryClass.hasArgs()) {
+      return;
+    }
+    String groupName = factoryClass.getQualifiedFactoryGroupName();
+    TypeElement groupElement = elementUtils.getTypeElement(groupName);
+    if (options.isRegistry()) {
+      warning(groupElement, String.format(
+          "Option %s is ignored for %s, because its classes have constructor arguments (@%s "
+              + "args()) that a registered Supplier can't take", FactoryOptions.REGISTRY,
+          groupName, Factory.class.getSimpleName()));
+    }
+    if (options.isSuppliers()) {
+      warning(groupElement, String.format(
+          "Option %s is ignored for %s, because its classes have constructor arguments (@%s "
+              + "args()) that a Supplier can't pass", FactoryOptions.SUPPLIERS, groupName,
+          Factory.class.getSimpleName()));
+    }
+  }
+
+  /**
+   * Writes the factory of the previous compilation again if its fingerprint hasn't changed, see
+   * {@link FactoryGroupedClasses#rewritePreviousSource(Filer)}
+   *
+   * @param start when generating the factory has been started, for the statistics
+   * @return true if the factory has been written
+   */
+  private boolean rewritePreviousSource(FactoryGroupedClasses factoryClass, long start)
+      throws IOException {
+    long writingStart = System.nanoTime();
+    if (!factoryClass.rewritePreviousSource(filer)) {
+      return false;
+    }
+    if (options.getModule() == null) {
+      factoryClass.writeIndex(filer);
+    }
+    stats.addGroup(factoryClass, writingStart - start, System.nanoTime() - writingStart, true);
     return true;
   }
 
+  /**
+   * Writes the factory and its index file
+   */
+  private void write(FactoryGroupedClasses factoryClass, JavaFile javaFile) throws IOException {
+    factoryClass.writeJavaFile(filer, javaFile);
+    if (options.getModule() == null) {
+      // The module index replaces the index of a partial factory
+      factoryClass.writeIndex(filer);
+    }
+  }
+
+  /**
+   * Prints a warning
+   *
+   * @param e The element which has caused the warning. Can be null
+   * @param msg The warning message
+   */
+  public void warning(Element e, String msg) {
+    messager.printMessage(Diagnostic.Kind.WARNING, msg, e);
+  }
+
   /**
    * Prints an error message
    *
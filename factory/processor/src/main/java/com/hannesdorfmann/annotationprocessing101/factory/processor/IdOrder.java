@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hannesdorfmann.annotationprocessing101.factory.processor;
+
+/**
+ * Defines in which order the generated factories list and test the ids, and in which order the
+ * factories are generated. Can be set for all factories with the processor option {@link
+ * FactoryOptions#ORDER}.
+ *
+ * @author Hannes Dorfmann
+ */
+public enum IdOrder {
+
+  /**
+   * Ids and groups are sorted by {@link String#compareTo(String)}. The generated code doesn't
+   * depend on the order in which javac reports the annotated classes, so it is the same for every
+   * build with the same sources.
+   */
+  SORTED,
+
+  /**
+   * The order in which javac reports the annotated classes. An if chain tests the first reported id
+   * first, so the hottest ids can be put first. The order depends on the order of the source files
+   * passed to javac.
+   */
+  DECLARATION;
+
+  /**
+   * Get the order for the value of the processor option {@link FactoryOptions#ORDER}
+   *
+   * @param value the value of the option, may be null
+   * @return the order
+   * @throws IllegalArgumentException if the value is not a known order
+   */
+  public static IdOrder fromOption(String value) {
+    if (value == null || value.length() == 0) {
+      return SORTED;
+    }
+
+    for (IdOrder order : values()) {
+      if (order.name().equalsIgnoreCase(value)) {
+        return order;
+      }
+    }
+
+    throw new IllegalArgumentException(
+        String.format("Unknown value '%s' for option %s", value, FactoryOptions.ORDER));
+  }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hannesdorfmann.annotationprocessing101.factory.processor;
+
+/**
+ * Defines which runtime metrics the generated factories collect. Can be set for all factories with
+ * the processor option {@link FactoryOptions#METRICS}.
+ *
+ * @author Hannes Dorfmann
+ */
+public enum MetricsMode {
+
+  /**
+   * No metrics, the generated code doesn't contain any metrics related code
+   */
+  OFF,
+
+  /**
+   * Counts the created instances per id with a <code>java.util.concurrent.atomic.LongAdder</code>.
+   * The counts can be read with the generated static method stats().
+   */
+  COUNTERS,
+
+  /**
+   * Like {@link #COUNTERS}, but additionally measures the time of every 64th (randomly sampled)
+   * instance creation. The average per id can be read with the generated static method
+   * latencyStats().
+   */
+  LATENCY;
+
+  /**
+   * Get the mode for the value of the processor option {@link FactoryOptions#METRICS}
+   *
+   * @param value the value of the option, may be null
+   * @return the mode
+   * @throws IllegalArgumentException if the value is not a known mode
+   */
+  public static MetricsMode fromOption(String value) {
+    if (value == null || value.length() == 0) {
+      return OFF;
+    }
+
+    for (MetricsMode mode : values()) {
+      if (mode.name().equalsIgnoreCase(value)) {
+        return mode;
+      }
+    }
+
+    throw new IllegalArgumentException(
+        String.format("Unknown value '%s' for option %s", value, FactoryOptions.METRICS));
+  }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hannesdorfmann.annotationprocessing101.factory.processor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A minimal perfect hash function over a fixed set of ids, computed at compile time with the
+ * "hash, displace and compress" (CHD) algorithm.
+ *
+ * <p>
+ * Each id is first hashed into a bucket. Every bucket gets a seed, so that all ids of the bucket
+ * end up in distinct free slots of a table that has exactly one slot per id. At runtime an id is
+ * resolved with {@link String#hashCode()} (which is cached by the String), two cheap integer
+ * mixes, two array reads and a single confirming equals():
+ * </p>
+ * <pre>
+ * int h = id.hashCode();
+ * int slot = reduce(mix(h ^ seeds[reduce(mix(h), seeds.length)]), ids.length);
+ * </pre>
+ *
+ * <p>
+ * The generated factory contains the same {@link #mix(int)} and {@link #reduce(int, int)} code, so
+ * both sides must never get out of sync.
+ * </p>
+ *
+ * @author Hannes Dorfmann
+ */
+public class PerfectHash {
+
+  /**
+   * The average number of ids per bucket
+   */
+  private static final int BUCKET_SIZE = 4;
+
+  /**
+   * Upper bound for the seed search of a single bucket
+   */
+  private static final int MAX_SEED = 1 << 20;
+
+  private final String[] slots;
+  private final int[] seeds;
+
+  private PerfectHash(String[] slots, int[] seeds) {
+    this.slots = slots;
+    this.seeds = seeds;
+  }
+
+  /**
+   * Computes a minimal perfect hash for the given ids.
+   *
+   * @param ids The ids. Must not contain duplicates.
+   * @return The perfect hash or null, if no perfect hash could be found. That is always the case if
+   * two ids have the same {@link String#hashCode()}
+   */
+  public static PerfectHash create(List<String> ids) {
+
+    int size = ids.size();
+    int[] hashes = new int[size];
+    Set<Integer> distinctHashes = new HashSet<Integer>();
+    for (int i = 0; i < size; i++) {
+      hashes[i] = ids.get(i).hashCode();
+      if (!distinctHashes.add(hashes[i])) {
+        // Two ids can never be separated, because they share the same hash code
+        return null;
+      }
+    }
+
+    // Hash all ids into buckets
+    int bucketCount = Math.max(1, (size + BUCKET_SIZE - 1) / BUCKET_SIZE);
+    final List<List<Integer>> buckets = new ArrayList<List<Integer>>(bucketCount);
+    for (int i = 0; i < bucketCount; i++) {
+      buckets.add(new ArrayList<Integer>());
+    }
+    for (int i = 0; i < size; i++) {
+      buckets.get(reduce(mix(hashes[i]), bucketCount)).add(i);
+    }
+
+    // Place the biggest buckets first, while there are still many free slots
+    List<Integer> bucketOrder = new ArrayList<Integer>(bucketCount);
+    for (int i = 0; i < bucketCount; i++) {
+      bucketOrder.add(i);
+    }
+    Collections.sort(bucketOrder, new Comparator<Integer>() {
+      @Override public int compare(Integer b1, Integer b2) {
+        int sizeDiff = buckets.get(b2).size() - buckets.get(b1).size();
+        return sizeDiff != 0 ? sizeDiff : b1.compareTo(b2);
+      }
+    });
+
+    String[] slots = new String[size];
+    int[] seeds = new int[bucketCount];
+    int[] bucketSlots = new int[BUCKET_SIZE * 4];
+
+    for (int bucket : bucketOrder) {
+      List<Integer> items = buckets.get(bucket);
+      if (items.isEmpty()) {
+        break;
+      }
+      if (bucketSlots.length < items.size()) {
+        bucketSlots = new int[items.size()];
+      }
+
+      int seed = 1;
+      while (!fits(items, hashes, seed, slots, bucketSlots)) {
+        if (++seed == MAX_SEED) {
+          return null;
+        }
+      }
+
+      seeds[bucket] = seed;
+      for (int i = 0; i < items.size(); i++) {
+        slots[bucketSlots[i]] = ids.get(items.get(i));
+      }
+    }
+
+    return new PerfectHash(slots, seeds);
+  }
+
+  /**
+   * Checks if all items of a bucket fall into distinct free slots with the given seed. The slots
+   * are written into bucketSlots.
+   */
+  private static boolean fits(List<Integer> items, int[] hashes, int seed, String[] slots,
+      int[] bucketSlots) {
+    for (int i = 0; i < items.size(); i++) {
+      int slot = reduce(mix(hashes[items.get(i)] ^ seed), slots.length);
+      if (slots[slot] != null) {
+        return false;
+      }
+      for (int j = 0; j < i; j++) {
+        if (bucketSlots[j] == slot) {
+          return false;
+        }
+      }
+      bucketSlots[i] = slot;
+    }
+    return true;
+  }
+
+  /**
+   * The finalization step of MurmurHash3. Spreads the bits of hash codes that only differ in a few
+   * bits.
+   */
+  static int mix(int h) {
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h;
+  }
+
+  /**
+   * Maps a hash uniformly to [0, size) with a multiplication instead of an (expensive) modulo
+   */
+  static int reduce(int hash, int size) {
+    return (int) (((hash & 0xffffffffL) * size) >>> 32);
+  }
+
+  /**
+   * Get the ids ordered by their slot. The slot of an id is its index in the returned array.
+   */
+  public String[] getSlots() {
+    return slots;
+  }
+
+  /**
+   * Get the seed of each bucket
+   */
+  public int[] getSeeds() {
+    return seeds;
+  }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hannesdorfmann.annotationprocessing101.factory.processor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Collects how much time the processor spends in each phase, see {@link FactoryOptions#STATS}.
+ * Times are measured with {@link System#nanoTime()} and summed up over all rounds.
+ *
+ * @author Hannes Dorfmann
+ */
+public class ProcessorStats {
+
+  /**
+   * The phases of the processor
+   */
+  public enum Phase {
+    /**
+     * Finding the @Factory annotated elements and reading the annotations
+     */
+    SCANNING,
+
+    /**
+     * checkValidClass()
+     */
+    VALIDATION,
+
+    /**
+     * Adding the classes to their groups, including the id conflict checks
+     */
+    GROUPING,
+
+    /**
+     * Building the source code of the factories with JavaPoet
+     */
+    BUILDING,
+
+    /**
+     * Writing the factories with the Filer
+     */
+    WRITING
+  }
+
+  /**
+   * The statistics of a single generated factory
+   */
+  private static class GroupStats {
+    String factory;
+    String type;
+    int classes;
+    int intIds;
+    int pooled;
+    int singletons;
+    /**
+     * null if the factory has been reused, because it hasn't been built
+     */
+    DispatchStrategy dispatchStrategy;
+    boolean reused;
+    long buildingNanos;
+    long writingNanos;
+  }
+
+  private final long[] nanos = new long[Phase.values().length];
+  private final List<GroupStats> groups = new ArrayList<GroupStats>();
+  private int rounds;
+  private int annotatedClasses;
+
+  /**
+   * Adds the time spent in the given phase
+   */
+  public void add(Phase phase, long nanos) {
+    this.nanos[phase.ordinal()] += nanos;
+  }
+
+  /**
+   * Marks the start of a new processing round
+   */
+  public void newRound() {
+    rounds++;
+  }
+
+  /**
+   * Counts an annotated class
+   */
+  public void addAnnotatedClass() {
+    annotatedClasses++;
+  }
+
+  /**
+   * Adds a generated factory
+   *
+   * @param group the group of the factory
+   * @param buildingNanos the time it took to build the source code
+   * @param writingNanos the time it took to write the source code
+   * @param reused true if the source code of the previous compilation has been written again
+   * instead of building it
+   */
+  public void addGroup(FactoryGroupedClasses group, long buildingNanos, long writingNanos,
+      boolean reused) {
+    GroupStats stats = new GroupStats();
+    stats.factory = group.getQualifiedFactoryName();
+    stats.type = group.getQualifiedFactoryGroupName();
+    stats.dispatchStrategy = reused ? null : group.getDispatchStrategy();
+    stats.reused = reused;
+    stats.buildingNanos = buildingNanos;
+    stats.writingNanos = writingNanos;
+    for (FactoryAnnotatedClass item : group.getItems()) {
+      stats.classes++;
+      if (item.hasIntId()) {
+        stats.intIds++;
+      }
+      if (item.isPooled()) {
+        stats.pooled++;
+      }
+      if (item.isSingleton()) {
+        stats.singletons++;
+      }
+    }
+    groups.add(stats);
+    add(Phase.BUILDING, buildingNanos);
+    add(Phase.WRITING, writingNanos);
+  }
+
+  /**
+   * Get a human readable summary, one line per phase and per factory
+   */
+  public List<String> toLines() {
+    List<String> lines = new ArrayList<String>();
+    long total = 0;
+    for (long phaseNanos : nanos) {
+      total += phaseNanos;
+    }
+    lines.add(String.format(Locale.US,
+        "FactoryProcessor: %d rounds, %d annotated classes, %d factories, %.2f ms", rounds,
+        annotatedClasses, groups.size(), millis(total)));
+    for (Phase phase : Phase.values()) {
+      lines.add(String.format(Locale.US, "  %s: %.2f ms", phase.name().toLowerCase(Locale.US),
+          millis(nanos[phase.ordinal()])));
+    }
+    for (GroupStats group : groups) {
+      lines.add(String.format(Locale.US,
+          "  %s: %d classes (%d intIds, %d pooled, %d singletons), %s, built in %.2f ms, "
+              + "written in %.2f ms", group.factory, group.classes, group.intIds, group.pooled,
+          group.singletons, group.reused ? "reused" : group.dispatchStrategy,
+          millis(group.buildingNanos),
+          millis(group.writingNanos)));
+    }
+    return lines;
+  }
+
+  /**
+   * Get the statistics as JSON document
+   */
+  public String toJson() {
+    StringBuilder json = new StringBuilder();
+    json.append("{\n");
+    json.append("  \"rounds\": ").append(rounds).append(",\n");
+    json.append("  \"annotatedClasses\": ").append(annotatedClasses).append(",\n");
+    json.append("  \"nanos\": {\n");
+    Phase[] phases = Phase.values();
+    for (int i = 0; i < phases.length; i++) {
+      json.append("    ").append(quote(phases[i].name().toLowerCase(Locale.US))).append(": ")
+          .append(nanos[i]).append(i < phases.length - 1 ? ",\n" : "\n");
+    }
+    json.append("  },\n");
+    json.append("  \"factories\": [");
+    for (int i = 0; i < groups.size(); i++) {
+      GroupStats group = groups.get(i);
+      json.append(i == 0 ? "\n" : ",\n");
+      json.append("    {\n");
+      json.append("      \"factory\": ").append(quote(group.factory)).append(",\n");
+      json.append("      \"type\": ").append(quote(group.type)).append(",\n");
+      json.append("      \"classes\": ").append(group.classes).append(",\n");
+      json.append("      \"intIds\": ").append(group.intIds).append(",\n");
+      json.append("      \"pooled\": ").append(group.pooled).append(",\n");
+      json.append("      \"singletons\": ").append(group.singletons).append(",\n");
+      json.append("      \"dispatch\": ")
+          .append(group.dispatchStrategy == null ? "null" : quote(group.dispatchStrategy.name()))
+          .append(",\n");
+      json.append("      \"reused\": ").append(group.reused).append(",\n");
+      json.append("      \"buildingNanos\": ").append(group.buildingNanos).append(",\n");
+      json.append("      \"writingNanos\": ").append(group.writingNanos).append("\n");
+      json.append("    }");
+    }
+    json.append(groups.isEmpty() ? "]\n" : "\n  ]\n");
+    json.append("}\n");
+    return json.toString();
+  }
+
+  private static double millis(long nanos) {
+    return nanos / 1e6;
+  }
+
+  private static String quote(String value) {
+    StringBuilder quoted = new StringBuilder("\"");
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        quoted.append('\\');
+      }
+      quoted.append(c);
+    }
+    return quoted.append('"').toString();
+  }
+}